@@ -1,11 +1,41 @@
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.text.*;
 import java.io.*;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import javax.swing.Timer;
 import java.awt.geom.RoundRectangle2D;
 import java.util.List;
@@ -27,16 +57,117 @@ public class CarRetailSystem extends JFrame {
     private JFrame loginFrame;
 
     // Data
-    private DefaultTableModel inventoryModel, salesModel, customersModel, employeesModel;
-    private ArrayList<Car> cars = new ArrayList<>();
-    private ArrayList<Sale> sales = new ArrayList<>();
-    private ArrayList<Customer> customers = new ArrayList<>();
-    private ArrayList<Employee> employees = new ArrayList<>();
+    private EntityTableModel<Car> inventoryModel;
+    private EntityTableModel<Sale> salesModel;
+    private EntityTableModel<Customer> customersModel;
+    private EntityTableModel<Employee> employeesModel;
+    private TableQueryRunner<Car> inventoryQueries;
+    private TableQueryRunner<Sale> salesQueries;
+    private TableQueryRunner<Customer> customersQueries;
+    private TableQueryRunner<Employee> employeesQueries;
+    private final Repository<Car> cars = new Repository<>(Car::getId);
+    private final Repository<Sale> sales = new Repository<>(Sale::getId);
+    private final Repository<Customer> customers = new Repository<>(Customer::getId);
+    private final Repository<Employee> employees = new Repository<>(Employee::getId);
+    private final SalesAggregateStore salesAggregates = new SalesAggregateStore(sales);
+    // Make, model and color names, shared by the search index and compact car storage
+    private final StringDictionary carMakes = new StringDictionary();
+    private final StringDictionary carModels = new StringDictionary();
+    private final StringDictionary carColors = new StringDictionary();
+    private final CarSearchIndex carSearchIndex = new CarSearchIndex(cars);
+    private final SortedIntIndex<Car> carPriceIndex = new SortedIntIndex<>(cars, Car::getId, CarRetailSystem::priceCents);
+    private final SortedIntIndex<Car> carYearIndex = new SortedIntIndex<>(cars, Car::getId, Car::getYear);
+    private final SortedIntIndex<Car> carMileageIndex = new SortedIntIndex<>(cars, Car::getId, Car::getMileage);
+    private final CarStatusIndex carStatusIndex = new CarStatusIndex(cars);
+    private final VinIndex vinIndex = new VinIndex(cars);
+    private final PaymentMethods paymentMethods = new PaymentMethods();
+    private final SalesLedger salesLedger = new SalesLedger(sales);
+    private final DashboardMetrics dashboardMetrics = new DashboardMetrics();
+    // Compact car storage, enabled with -Dcarretail.cars.compact=true (off-heap with
+    // -Dcarretail.cars.offHeap=true); null means cars keep their fields on the heap
+    private final CarColumnStore carColumns = Boolean.getBoolean("carretail.cars.compact")
+            ? new CarColumnStore(cars, Boolean.getBoolean("carretail.cars.offHeap")) : null;
+
+    // Id allocation. Sequences hand out ids from blocks reserved in idStore, which is the
+    // database, the data directory or (with neither) memory, so ids survive restarts.
+    private volatile IdStore idStore = new MemoryIdStore();
+    private final IdSequence<Car> carIds = new IdSequence<>("cars", cars, Car::getId);
+    private final IdSequence<Sale> saleIds = new IdSequence<>("sales", sales, Sale::getId);
+    private final IdSequence<Customer> customerIds = new IdSequence<>("customers", customers, Customer::getId);
+    private final IdSequence<Employee> employeeIds = new IdSequence<>("employees", employees, Employee::getId);
+    private final SaleTransactions saleTransactions = new SaleTransactions();
+
+    // Persistence, enabled with -Dcarretail.jdbc.url=... (MySQL, or H2 with MODE=MySQL)
+    private JdbcStore jdbcStore;
+    private WriteBehindQueue writeBehind;
+    private Journal journal;
+    private final JdbcTable<Car> carTable = new JdbcTable<>("cars", Car::getId,
+            new String[]{"id INT PRIMARY KEY", "make VARCHAR(64)", "model VARCHAR(64)", "model_year INT",
+                    "color VARCHAR(32)", "price DOUBLE", "status VARCHAR(16)", "mileage INT", "vin VARCHAR(32)"},
+            (statement, car) -> {
+                statement.setInt(1, car.getId());
+                statement.setString(2, car.getMake());
+                statement.setString(3, car.getModel());
+                statement.setInt(4, car.getYear());
+                statement.setString(5, car.getColor());
+                statement.setDouble(6, car.getPrice());
+                statement.setString(7, car.getStatus().name());
+                statement.setInt(8, car.getMileage());
+                statement.setString(9, car.getVin());
+            },
+            row -> createCar(row.getInt(1), row.getString(2), row.getString(3), row.getInt(4), row.getString(5),
+                    row.getDouble(6), CarStatus.valueOf(row.getString(7)), row.getInt(8), row.getString(9)));
+    private final JdbcTable<Customer> customerTable = new JdbcTable<>("customers", Customer::getId,
+            new String[]{"id INT PRIMARY KEY", "name VARCHAR(128)", "phone VARCHAR(32)", "email VARCHAR(128)",
+                    "address VARCHAR(255)", "driver_license VARCHAR(32)"},
+            (statement, customer) -> {
+                statement.setInt(1, customer.getId());
+                statement.setString(2, customer.getName());
+                statement.setString(3, customer.getPhone());
+                statement.setString(4, customer.getEmail());
+                statement.setString(5, customer.getAddress());
+                statement.setString(6, customer.getDriverLicense());
+            },
+            row -> new Customer(row.getInt(1), row.getString(2), row.getString(3), row.getString(4),
+                    row.getString(5), row.getString(6)));
+    private final JdbcTable<Employee> employeeTable = new JdbcTable<>("employees", Employee::getId,
+            new String[]{"id INT PRIMARY KEY", "name VARCHAR(128)", "job_position VARCHAR(32)", "phone VARCHAR(32)",
+                    "email VARCHAR(128)", "hire_date VARCHAR(10)", "salary DOUBLE", "username VARCHAR(64)",
+                    "password VARCHAR(128)"},
+            (statement, employee) -> {
+                statement.setInt(1, employee.getId());
+                statement.setString(2, employee.getName());
+                statement.setString(3, employee.getPosition());
+                statement.setString(4, employee.getPhone());
+                statement.setString(5, employee.getEmail());
+                statement.setString(6, employee.getHireDate());
+                statement.setDouble(7, employee.getSalary());
+                statement.setString(8, employee.getUsername());
+                statement.setString(9, employee.getPassword());
+            },
+            row -> new Employee(row.getInt(1), row.getString(2), row.getString(3), row.getString(4),
+                    row.getString(5), row.getString(6), row.getDouble(7), row.getString(8), row.getString(9)));
+    private final JdbcTable<Sale> saleTable = new JdbcTable<>("sales", Sale::getId,
+            new String[]{"id INT PRIMARY KEY", "sale_date VARCHAR(10)", "customer_id INT", "car_id INT",
+                    "price DOUBLE", "employee_id INT", "payment_method VARCHAR(32)"},
+            (statement, sale) -> {
+                statement.setInt(1, sale.getId());
+                statement.setString(2, sale.getDate());
+                statement.setInt(3, sale.getCustomerId());
+                statement.setInt(4, sale.getCarId());
+                statement.setDouble(5, sale.getPrice());
+                statement.setInt(6, sale.getEmployeeId());
+                statement.setString(7, sale.getPaymentMethod());
+            },
+            row -> new Sale(row.getInt(1), row.getString(2), row.getInt(3), row.getInt(4), row.getDouble(5),
+                    row.getInt(6), row.getString(7)));
 
     // Formatters
     private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     private NumberFormat currencyFormat = NumberFormat.getCurrencyInstance();
 
+    private static final String BACKUP_FILE = "carretail_backup.bin";
+
     public CarRetailSystem() {
         setTitle("🚗 Car Retail Management System");
         setExtendedState(JFrame.MAXIMIZED_BOTH); // Full screen
@@ -245,8 +376,8 @@ public class CarRetailSystem extends JFrame {
         // Initialize UI
         initUI();
 
-        // Load sample data
-        loadSampleData();
+        // Load data from the database when one is configured, otherwise sample data
+        loadData();
 
         // Show main application
         setVisible(true);
@@ -362,22 +493,24 @@ public class CarRetailSystem extends JFrame {
         statsPanel.setBackground(BACKGROUND_COLOR);
         statsPanel.setBorder(BorderFactory.createEmptyBorder(15, 0, 15, 0));
 
-        // Stat Cards with improved styling and hover effects
-        statsPanel.add(createStatCard("🚗 Total Cars", String.valueOf(cars.size()), PRIMARY_COLOR, "car_count.png"));
+        // Stat Cards with improved styling and hover effects; the values stay live
+        statsPanel.add(createStatCard("🚗 Total Cars",
+                dashboardMetrics.bind(() -> String.valueOf(dashboardMetrics.totalCars())),
+                PRIMARY_COLOR, "car_count.png"));
         statsPanel.add(createStatCard("✅ Available Cars",
-                String.valueOf(cars.stream().filter(c -> c.getStatus().equals("Available")).count()),
+                dashboardMetrics.bind(() -> String.valueOf(dashboardMetrics.availableCars())),
                 new Color(46, 204, 113), "available_cars.png"));
         statsPanel.add(createStatCard("💰 Sold Today",
-                String.valueOf(sales.stream().filter(s -> s.getDate().equals(dateFormat.format(new Date()))).count()),
+                dashboardMetrics.bind(() -> String.valueOf(dashboardMetrics.salesOn((int) LocalDate.now().toEpochDay()))),
                 new Color(231, 76, 60), "sold_today.png"));
         statsPanel.add(createStatCard("💵 Total Sales",
-                currencyFormat.format(sales.stream().mapToDouble(Sale::getPrice).sum()),
+                dashboardMetrics.bind(() -> currencyFormat.format(dashboardMetrics.totalSalesCents() / 100.0)),
                 new Color(155, 89, 182), "total_sales.png"));
-        statsPanel.add(createStatCard("👥 New Customers",
-                String.valueOf(customers.size()),
+        statsPanel.add(createStatCard("👥 Customers",
+                dashboardMetrics.bind(() -> String.valueOf(dashboardMetrics.customers())),
                 new Color(26, 188, 156), "new_customers.png"));
         statsPanel.add(createStatCard("👔 Employees",
-                String.valueOf(employees.size()),
+                dashboardMetrics.bind(() -> String.valueOf(dashboardMetrics.employees())),
                 new Color(230, 126, 34), "employees.png"));
 
         dashboardPanel.add(statsPanel, BorderLayout.CENTER);
@@ -446,32 +579,17 @@ public class CarRetailSystem extends JFrame {
 
     private Object[][] getRecentSalesData() {
         // Get the 5 most recent sales
-        List<Sale> recentSales = sales.stream()
-                .sorted((s1, s2) -> s2.getDate().compareTo(s1.getDate()))
-                .limit(5)
-                .toList();
+        List<Sale> recentSales = salesLedger.latest(5);
 
         Object[][] data = new Object[recentSales.size()][5];
 
         for (int i = 0; i < recentSales.size(); i++) {
             Sale sale = recentSales.get(i);
-            String customerName = customers.stream()
-                    .filter(c -> c.getId() == sale.getCustomerId())
-                    .findFirst()
-                    .map(Customer::getName)
-                    .orElse("Unknown");
-
-            String carDetails = cars.stream()
-                    .filter(c -> c.getId() == sale.getCarId())
-                    .findFirst()
-                    .map(c -> c.getMake() + " " + c.getModel())
-                    .orElse("Unknown");
-
-            String employeeName = employees.stream()
-                    .filter(e -> e.getId() == sale.getEmployeeId())
-                    .findFirst()
-                    .map(Employee::getName)
-                    .orElse("Unknown");
+            String customerName = customerName(sale.getCustomerId());
+
+            String carDetails = carDetails(sale.getCarId());
+
+            String employeeName = employeeName(sale.getEmployeeId());
 
             data[i] = new Object[]{
                     sale.getDate(),
@@ -485,7 +603,7 @@ public class CarRetailSystem extends JFrame {
         return data;
     }
 
-    private JPanel createStatCard(String title, String value, Color color, String iconPath) {
+    private JPanel createStatCard(String title, JLabel valueLabel, Color color, String iconPath) {
         class StatCardPanel extends JPanel {
             private boolean isHovered = false;
 
@@ -532,7 +650,6 @@ public class CarRetailSystem extends JFrame {
         card.add(headerPanel, BorderLayout.NORTH);
 
         // Value with improved styling
-        JLabel valueLabel = new JLabel(value, SwingConstants.CENTER);
         valueLabel.setFont(new Font("Segoe UI", Font.BOLD, 28));
         valueLabel.setForeground(color);
         valueLabel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
@@ -647,11 +764,15 @@ public class CarRetailSystem extends JFrame {
         JButton deleteButton = createStyledButton("🗑 Delete Car", new Color(231, 76, 60), "delete.png");
         JButton refreshButton = createStyledButton("🔄 Refresh", new Color(52, 73, 94), "refresh.png");
         JButton exportButton = createStyledButton("📤 Export", new Color(155, 89, 182), "export.png");
+        JButton reserveButton = createStyledButton("📌 Reserve", new Color(230, 126, 34), "reserve.png");
+        JButton importButton = createStyledButton("📥 Import", new Color(41, 128, 185), "import.png");
 
         buttonPanel.add(addButton);
         buttonPanel.add(editButton);
         buttonPanel.add(deleteButton);
+        buttonPanel.add(reserveButton);
         buttonPanel.add(refreshButton);
+        buttonPanel.add(importButton);
         buttonPanel.add(exportButton);
 
         headerPanel.add(buttonPanel, BorderLayout.EAST);
@@ -660,14 +781,43 @@ public class CarRetailSystem extends JFrame {
 
         // Table with improved styling
         String[] columns = {"ID", "Make", "Model", "Year", "Color", "Price", "Status", "Mileage", "VIN"};
-        inventoryModel = new DefaultTableModel(columns, 0) {
+        inventoryModel = new EntityTableModel<>(columns, Car::getId) {
+            @Override
+            protected Object cellValue(Car car, int column) {
+                switch (column) {
+                    case 0: return car.getId();
+                    case 1: return car.getMake();
+                    case 2: return car.getModel();
+                    case 3: return car.getYear();
+                    case 4: return car.getColor();
+                    case 5: return currencyFormat.format(car.getPrice());
+                    case 6: return car.getStatus().toString();
+                    case 7: return car.getMileage();
+                    default: return car.getVin();
+                }
+            }
+
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false; // Make table non-editable
+            protected Object exportValue(Car car, int column) {
+                return column == 5 ? plainAmount(car.getPrice()) : cellValue(car, column);
             }
         };
 
-        JTable inventoryTable = new JTable(inventoryModel);
+        cars.addListener(inventoryModel);
+        inventoryQueries = new TableQueryRunner<>(inventoryModel, cars);
+
+        JTable inventoryTable = new JTable(inventoryModel) {
+            // The VIN column explains itself on hover; decoding is cached per VIN
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int row = rowAtPoint(event.getPoint());
+                int column = columnAtPoint(event.getPoint());
+                if (row < 0 || column < 0 || convertColumnIndexToModel(column) != 8) return null;
+                VinDetails details = vinIndex.details(inventoryModel.getRow(convertRowIndexToModel(row)).getVin());
+                return details != null ? details.summary() : null;
+            }
+        };
+        ToolTipManager.sharedInstance().registerComponent(inventoryTable);
         styleTable(inventoryTable);
         inventoryTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 
@@ -692,7 +842,7 @@ public class CarRetailSystem extends JFrame {
         searchField.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         searchField.setForeground(TEXT_COLOR);
 
-        JComboBox<String> searchType = new JComboBox<>(new String[]{"All", "Make", "Model", "Year", "Color", "Price Range", "Status"});
+        JComboBox<String> searchType = new JComboBox<>(new String[]{"All", "Make", "Model", "Year", "Color", "Price Range", "Mileage", "Status", "VIN"});
         searchType.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         searchType.setForeground(TEXT_COLOR);
 
@@ -732,7 +882,7 @@ public class CarRetailSystem extends JFrame {
         editButton.addActionListener(e -> {
             int selectedRow = inventoryTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int carId = (int) inventoryModel.getValueAt(selectedRow, 0);
+                int carId = inventoryModel.getId(inventoryTable.convertRowIndexToModel(selectedRow));
                 showEditCarDialog(carId);
             } else {
                 JOptionPane.showMessageDialog(inventoryPanel, "Please select a car to edit", "No Selection", JOptionPane.WARNING_MESSAGE);
@@ -741,24 +891,35 @@ public class CarRetailSystem extends JFrame {
         deleteButton.addActionListener(e -> {
             int selectedRow = inventoryTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int carId = (int) inventoryModel.getValueAt(selectedRow, 0);
+                int carId = inventoryModel.getId(inventoryTable.convertRowIndexToModel(selectedRow));
                 deleteCar(carId);
             } else {
                 JOptionPane.showMessageDialog(inventoryPanel, "Please select a car to delete", "No Selection", JOptionPane.WARNING_MESSAGE);
             }
         });
+        reserveButton.addActionListener(e -> {
+            int selectedRow = inventoryTable.getSelectedRow();
+            if (selectedRow >= 0) {
+                int carId = inventoryModel.getId(inventoryTable.convertRowIndexToModel(selectedRow));
+                showReserveCarDialog(carId);
+            } else {
+                JOptionPane.showMessageDialog(inventoryPanel, "Please select a car to reserve", "No Selection", JOptionPane.WARNING_MESSAGE);
+            }
+        });
         refreshButton.addActionListener(e -> refreshInventoryTable());
         searchButton.addActionListener(e -> searchInventory(searchField.getText(), (String) searchType.getSelectedItem()));
+        searchAsYouType(searchField, searchType, this::searchInventory);
         clearButton.addActionListener(e -> {
             searchField.setText("");
             refreshInventoryTable();
         });
-        exportButton.addActionListener(e -> exportToCSV(inventoryTable, "inventory_export.csv"));
+        importButton.addActionListener(e -> importCars());
+        exportButton.addActionListener(e -> exportToCSV(inventoryTable, inventoryModel, cars, "inventory_export.csv"));
         statusFilter.addActionListener(e -> filterByStatus((String) statusFilter.getSelectedItem()));
     }
 
     private void showEditCarDialog(int carId) {
-        Car carToEdit = cars.stream().filter(c -> c.getId() == carId).findFirst().orElse(null);
+        Car carToEdit = cars.findById(carId);
         if (carToEdit == null) {
             JOptionPane.showMessageDialog(this, "Car not found", "Error", JOptionPane.ERROR_MESSAGE);
             return;
@@ -848,10 +1009,12 @@ public class CarRetailSystem extends JFrame {
         formPanel.add(createFormLabel("Status:"), gbc);
 
         gbc.gridx = 1;
-        String[] statusOptions = {"Available", "Sold", "Reserved", "In Service"};
-        JComboBox<String> statusCombo = new JComboBox<>(statusOptions);
+        JComboBox<CarStatus> statusCombo = new JComboBox<>(CarStatus.values());
         statusCombo.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        statusCombo.setSelectedItem(carToEdit.getStatus());
+        // A sale or hold may change the status while the dialog is open; Save only moves
+        // it on from this one
+        CarStatus shownStatus = carToEdit.getStatus();
+        statusCombo.setSelectedItem(shownStatus);
         formPanel.add(statusCombo, gbc);
 
         // Buttons with improved styling
@@ -872,20 +1035,33 @@ public class CarRetailSystem extends JFrame {
         saveButton.addActionListener(e -> {
             // Validate and save car
             try {
-                carToEdit.setMake(makeField.getText());
-                carToEdit.setModel(modelField.getText());
-                carToEdit.setYear(Integer.parseInt(yearField.getText()));
-                carToEdit.setColor(colorField.getText());
-                carToEdit.setPrice(Double.parseDouble(priceField.getText()));
-                carToEdit.setStatus((String) statusCombo.getSelectedItem());
-                carToEdit.setMileage(Integer.parseInt(mileageField.getText()));
-                carToEdit.setVin(vinField.getText());
-
-                refreshInventoryTable();
+                // Checked before anything is set, so a clash leaves the car untouched
+                Car owner = vinIndex.find(vinField.getText());
+                if (owner != null && owner != carToEdit) {
+                    JOptionPane.showMessageDialog(dialog, "VIN " + vinKey(vinField.getText()) + " already belongs to car #"
+                            + owner.getId() + " (" + owner.getMake() + " " + owner.getModel() + ")", "Duplicate VIN", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // Parsed first so a bad number leaves the car untouched
+                int year = Integer.parseInt(yearField.getText());
+                double price = Double.parseDouble(priceField.getText());
+                int mileage = Integer.parseInt(mileageField.getText());
+                CarStatus status = (CarStatus) statusCombo.getSelectedItem();
+                saleTransactions.edit(carToEdit, shownStatus, status, car -> {
+                    car.setMake(makeField.getText());
+                    car.setModel(modelField.getText());
+                    car.setYear(year);
+                    car.setColor(colorField.getText());
+                    car.setPrice(price);
+                    car.setMileage(mileage);
+                    car.setVin(vinField.getText());
+                });
                 dialog.dispose();
                 JOptionPane.showMessageDialog(this, "Car updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter valid numbers for year, price and mileage", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalArgumentException | IllegalStateException ex) {
+                JOptionPane.showMessageDialog(dialog, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         });
 
@@ -903,12 +1079,52 @@ public class CarRetailSystem extends JFrame {
         );
 
         if (confirm == JOptionPane.YES_OPTION) {
-            cars.removeIf(c -> c.getId() == carId);
-            refreshInventoryTable();
+            cars.remove(carId);
             JOptionPane.showMessageDialog(this, "Car deleted successfully", "Success", JOptionPane.INFORMATION_MESSAGE);
         }
     }
 
+    // Puts a timed hold on an available car for one customer, or releases an existing hold
+    private void showReserveCarDialog(int carId) {
+        SaleTransactions.Hold hold = saleTransactions.holdOn(carId);
+        if (hold != null) {
+            Customer holder = customers.findById(hold.customerId);
+            String heldFor = hold.customerId == SaleTransactions.ANY_CUSTOMER ? "no particular customer (reserved before a restart)"
+                    : holder != null ? holder.getName() : "customer " + hold.customerId;
+            int confirm = JOptionPane.showConfirmDialog(
+                    this,
+                    "This car is held for " + heldFor
+                            + " until " + new SimpleDateFormat("HH:mm").format(new Date(hold.expiresAt)) + ". Release the hold?",
+                    "Confirm Release",
+                    JOptionPane.YES_NO_OPTION
+            );
+            if (confirm == JOptionPane.YES_OPTION) {
+                saleTransactions.release(carId);
+            }
+            return;
+        }
+
+        JComboBox<String> customerCombo = new JComboBox<>();
+        customers.forEach(c -> customerCombo.addItem(c.getName() + " (" + c.getId() + ")"));
+        JSpinner minutesSpinner = new JSpinner(new SpinnerNumberModel(
+                Integer.getInteger("carretail.holdMinutes", 30).intValue(), 1, 7 * 24 * 60, 5));
+        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Customer:"));
+        panel.add(customerCombo);
+        panel.add(new JLabel("Hold for (minutes):"));
+        panel.add(minutesSpinner);
+
+        int choice = JOptionPane.showConfirmDialog(this, panel, "Reserve Car", JOptionPane.OK_CANCEL_OPTION);
+        if (choice != JOptionPane.OK_OPTION || customerCombo.getSelectedItem() == null) return;
+        int customerId = Integer.parseInt(customerCombo.getSelectedItem().toString().split("\\(")[1].replace(")", ""));
+        try {
+            saleTransactions.reserve(carId, customerId, (Integer) minutesSpinner.getValue());
+            JOptionPane.showMessageDialog(this, "Car reserved", "Success", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IllegalStateException ex) {
+            JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void createSalesPanel() {
         salesPanel = new JPanel(new BorderLayout(10, 10));
         salesPanel.setBackground(BACKGROUND_COLOR);
@@ -946,13 +1162,31 @@ public class CarRetailSystem extends JFrame {
 
         // Table with improved styling
         String[] columns = {"Sale ID", "Date", "Customer", "Car", "Price", "Salesperson", "Payment Method"};
-        salesModel = new DefaultTableModel(columns, 0) {
+        salesModel = new EntityTableModel<>(columns, Sale::getId) {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            protected Object cellValue(Sale sale, int column) {
+                switch (column) {
+                    case 0: return sale.getId();
+                    case 1: return sale.getDate();
+                    case 2: return customerName(sale.getCustomerId());
+                    case 3: return carDetails(sale.getCarId());
+                    case 4: return currencyFormat.format(sale.getPrice());
+                    case 5: return employeeName(sale.getEmployeeId());
+                    default: return sale.getPaymentMethod();
+                }
+            }
+
+            @Override
+            protected Object exportValue(Sale sale, int column) {
+                return column == 4 ? plainAmount(sale.getPrice()) : cellValue(sale, column);
             }
         };
 
+        sales.addListener(salesModel);
+        // Sales search matches customer, car and salesperson names too
+        salesQueries = new TableQueryRunner<>(salesModel, sales,
+                () -> sales.version() + cars.version() + customers.version() + employees.version());
+
         JTable salesTable = new JTable(salesModel);
         styleTable(salesTable);
         salesTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -1035,13 +1269,14 @@ public class CarRetailSystem extends JFrame {
         newSaleButton.addActionListener(e -> showNewSaleDialog());
         refreshButton.addActionListener(e -> refreshSalesTable());
         searchButton.addActionListener(e -> searchSales(searchField.getText(), (String) searchType.getSelectedItem()));
+        searchAsYouType(searchField, searchType, this::searchSales);
         clearButton.addActionListener(e -> {
             searchField.setText("");
             fromDateField.setText("");
             toDateField.setText("");
             refreshSalesTable();
         });
-        exportButton.addActionListener(e -> exportToCSV(salesTable, "sales_export.csv"));
+        exportButton.addActionListener(e -> exportToCSV(salesTable, salesModel, sales, "sales_export.csv"));
         dateFilterButton.addActionListener(e -> filterSalesByDate(fromDateField.getText(), toDateField.getText()));
     }
 
@@ -1084,13 +1319,42 @@ public class CarRetailSystem extends JFrame {
 
         // Table with improved styling
         String[] columns = {"ID", "Name", "Phone", "Email", "Address", "Purchases", "Last Purchase"};
-        customersModel = new DefaultTableModel(columns, 0) {
+        customersModel = new EntityTableModel<>(columns, Customer::getId) {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            protected Object cellValue(Customer customer, int column) {
+                switch (column) {
+                    case 0: return customer.getId();
+                    case 1: return customer.getName();
+                    case 2: return customer.getPhone();
+                    case 3: return customer.getEmail();
+                    case 4: return customer.getAddress();
+                    case 5:
+                        SalesAggregate purchases = salesAggregates.forCustomer(customer.getId());
+                        return purchases != null ? purchases.getCount() : 0L;
+                    default:
+                        SalesAggregate lastPurchase = salesAggregates.forCustomer(customer.getId());
+                        return lastPurchase != null ? lastPurchase.getLastDate() : "Never";
+                }
             }
         };
 
+        customers.addListener(customersModel);
+        customersQueries = new TableQueryRunner<>(customersModel, customers);
+        // Purchase columns come from the sales aggregates, so a sale repaints its buyer's row
+        sales.addListener(new RepositoryListener<>() {
+            @Override
+            public void inserted(Sale sale) { customersModel.updateRow(sale.getCustomerId()); }
+
+            @Override
+            public void updated(Sale sale) { }
+
+            @Override
+            public void deleted(Sale sale) { customersModel.updateRow(sale.getCustomerId()); }
+
+            @Override
+            public void reloaded(Iterable<Sale> items, List<Sale> previous) { customersModel.refresh(); }
+        });
+
         JTable customersTable = new JTable(customersModel);
         styleTable(customersTable);
         customersTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -1144,7 +1408,7 @@ public class CarRetailSystem extends JFrame {
         editButton.addActionListener(e -> {
             int selectedRow = customersTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int customerId = (int) customersModel.getValueAt(selectedRow, 0);
+                int customerId = customersModel.getId(customersTable.convertRowIndexToModel(selectedRow));
                 showEditCustomerDialog(customerId);
             } else {
                 JOptionPane.showMessageDialog(customersPanel, "Please select a customer to edit", "No Selection", JOptionPane.WARNING_MESSAGE);
@@ -1153,7 +1417,7 @@ public class CarRetailSystem extends JFrame {
         deleteButton.addActionListener(e -> {
             int selectedRow = customersTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int customerId = (int) customersModel.getValueAt(selectedRow, 0);
+                int customerId = customersModel.getId(customersTable.convertRowIndexToModel(selectedRow));
                 deleteCustomer(customerId);
             } else {
                 JOptionPane.showMessageDialog(customersPanel, "Please select a customer to delete", "No Selection", JOptionPane.WARNING_MESSAGE);
@@ -1161,15 +1425,16 @@ public class CarRetailSystem extends JFrame {
         });
         refreshButton.addActionListener(e -> refreshCustomersTable());
         searchButton.addActionListener(e -> searchCustomers(searchField.getText(), (String) searchType.getSelectedItem()));
+        searchAsYouType(searchField, searchType, this::searchCustomers);
         clearButton.addActionListener(e -> {
             searchField.setText("");
             refreshCustomersTable();
         });
-        exportButton.addActionListener(e -> exportToCSV(customersTable, "customers_export.csv"));
+        exportButton.addActionListener(e -> exportToCSV(customersTable, customersModel, customers, "customers_export.csv"));
     }
 
     private void showEditCustomerDialog(int customerId) {
-        Customer customerToEdit = customers.stream().filter(c -> c.getId() == customerId).findFirst().orElse(null);
+        Customer customerToEdit = customers.findById(customerId);
         if (customerToEdit == null) {
             JOptionPane.showMessageDialog(this, "Customer not found", "Error", JOptionPane.ERROR_MESSAGE);
             return;
@@ -1256,13 +1521,13 @@ public class CarRetailSystem extends JFrame {
                 return;
             }
 
-            customerToEdit.setName(nameField.getText());
-            customerToEdit.setPhone(phoneField.getText());
-            customerToEdit.setEmail(emailField.getText());
-            customerToEdit.setAddress(addressField.getText());
-            customerToEdit.setDriverLicense(licenseField.getText());
-
-            refreshCustomersTable();
+            customers.update(customerToEdit, customer -> {
+                customer.setName(nameField.getText());
+                customer.setPhone(phoneField.getText());
+                customer.setEmail(emailField.getText());
+                customer.setAddress(addressField.getText());
+                customer.setDriverLicense(licenseField.getText());
+            });
             dialog.dispose();
             JOptionPane.showMessageDialog(this, "Customer updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
         });
@@ -1281,8 +1546,7 @@ public class CarRetailSystem extends JFrame {
         );
 
         if (confirm == JOptionPane.YES_OPTION) {
-            customers.removeIf(c -> c.getId() == customerId);
-            refreshCustomersTable();
+            customers.remove(customerId);
             JOptionPane.showMessageDialog(this, "Customer deleted successfully", "Success", JOptionPane.INFORMATION_MESSAGE);
         }
     }
@@ -1326,13 +1590,45 @@ public class CarRetailSystem extends JFrame {
 
         // Table with improved styling
         String[] columns = {"ID", "Name", "Position", "Phone", "Email", "Hire Date", "Salary", "Sales Count"};
-        employeesModel = new DefaultTableModel(columns, 0) {
+        employeesModel = new EntityTableModel<>(columns, Employee::getId) {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            protected Object cellValue(Employee employee, int column) {
+                switch (column) {
+                    case 0: return employee.getId();
+                    case 1: return employee.getName();
+                    case 2: return employee.getPosition();
+                    case 3: return employee.getPhone();
+                    case 4: return employee.getEmail();
+                    case 5: return employee.getHireDate();
+                    case 6: return currencyFormat.format(employee.getSalary());
+                    default:
+                        SalesAggregate employeeSales = salesAggregates.forEmployee(employee.getId());
+                        return employeeSales != null ? employeeSales.getCount() : 0L;
+                }
+            }
+
+            @Override
+            protected Object exportValue(Employee employee, int column) {
+                return column == 6 ? plainAmount(employee.getSalary()) : cellValue(employee, column);
             }
         };
 
+        employees.addListener(employeesModel);
+        employeesQueries = new TableQueryRunner<>(employeesModel, employees);
+        sales.addListener(new RepositoryListener<>() {
+            @Override
+            public void inserted(Sale sale) { employeesModel.updateRow(sale.getEmployeeId()); }
+
+            @Override
+            public void updated(Sale sale) { }
+
+            @Override
+            public void deleted(Sale sale) { employeesModel.updateRow(sale.getEmployeeId()); }
+
+            @Override
+            public void reloaded(Iterable<Sale> items, List<Sale> previous) { employeesModel.refresh(); }
+        });
+
         JTable employeesTable = new JTable(employeesModel);
         styleTable(employeesTable);
         employeesTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -1386,7 +1682,7 @@ public class CarRetailSystem extends JFrame {
         editButton.addActionListener(e -> {
             int selectedRow = employeesTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int employeeId = (int) employeesModel.getValueAt(selectedRow, 0);
+                int employeeId = employeesModel.getId(employeesTable.convertRowIndexToModel(selectedRow));
                 showEditEmployeeDialog(employeeId);
             } else {
                 JOptionPane.showMessageDialog(employeesPanel, "Please select an employee to edit", "No Selection", JOptionPane.WARNING_MESSAGE);
@@ -1395,7 +1691,7 @@ public class CarRetailSystem extends JFrame {
         deleteButton.addActionListener(e -> {
             int selectedRow = employeesTable.getSelectedRow();
             if (selectedRow >= 0) {
-                int employeeId = (int) employeesModel.getValueAt(selectedRow, 0);
+                int employeeId = employeesModel.getId(employeesTable.convertRowIndexToModel(selectedRow));
                 deleteEmployee(employeeId);
             } else {
                 JOptionPane.showMessageDialog(employeesPanel, "Please select an employee to delete", "No Selection", JOptionPane.WARNING_MESSAGE);
@@ -1403,15 +1699,16 @@ public class CarRetailSystem extends JFrame {
         });
         refreshButton.addActionListener(e -> refreshEmployeesTable());
         searchButton.addActionListener(e -> searchEmployees(searchField.getText(), (String) searchType.getSelectedItem()));
+        searchAsYouType(searchField, searchType, this::searchEmployees);
         clearButton.addActionListener(e -> {
             searchField.setText("");
             refreshEmployeesTable();
         });
-        exportButton.addActionListener(e -> exportToCSV(employeesTable, "employees_export.csv"));
+        exportButton.addActionListener(e -> exportToCSV(employeesTable, employeesModel, employees, "employees_export.csv"));
     }
 
     private void showEditEmployeeDialog(int employeeId) {
-        Employee employeeToEdit = employees.stream().filter(e -> e.getId() == employeeId).findFirst().orElse(null);
+        Employee employeeToEdit = employees.findById(employeeId);
         if (employeeToEdit == null) {
             JOptionPane.showMessageDialog(this, "Employee not found", "Error", JOptionPane.ERROR_MESSAGE);
             return;
@@ -1527,16 +1824,18 @@ public class CarRetailSystem extends JFrame {
         // Button actions
         saveButton.addActionListener(e -> {
             try {
-                employeeToEdit.setName(nameField.getText());
-                employeeToEdit.setPosition((String) positionCombo.getSelectedItem());
-                employeeToEdit.setPhone(phoneField.getText());
-                employeeToEdit.setEmail(emailField.getText());
-                employeeToEdit.setHireDate(hireDateField.getText());
-                employeeToEdit.setSalary(Double.parseDouble(salaryField.getText()));
-                employeeToEdit.setUsername(usernameField.getText());
-                employeeToEdit.setPassword(new String(passwordField.getPassword()));
-
-                refreshEmployeesTable();
+                // Parsed first so a bad salary leaves the employee untouched
+                double salary = Double.parseDouble(salaryField.getText());
+                employees.update(employeeToEdit, employee -> {
+                    employee.setName(nameField.getText());
+                    employee.setPosition((String) positionCombo.getSelectedItem());
+                    employee.setPhone(phoneField.getText());
+                    employee.setEmail(emailField.getText());
+                    employee.setHireDate(hireDateField.getText());
+                    employee.setSalary(salary);
+                    employee.setUsername(usernameField.getText());
+                    employee.setPassword(new String(passwordField.getPassword()));
+                });
                 dialog.dispose();
                 JOptionPane.showMessageDialog(this, "Employee updated successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             } catch (NumberFormatException ex) {
@@ -1558,8 +1857,7 @@ public class CarRetailSystem extends JFrame {
         );
 
         if (confirm == JOptionPane.YES_OPTION) {
-            employees.removeIf(e -> e.getId() == employeeId);
-            refreshEmployeesTable();
+            employees.remove(employeeId);
             JOptionPane.showMessageDialog(this, "Employee deleted successfully", "Success", JOptionPane.INFORMATION_MESSAGE);
         }
     }
@@ -1693,6 +1991,14 @@ public class CarRetailSystem extends JFrame {
         backupButtonsPanel.add(backupButton);
         backupButtonsPanel.add(restoreButton);
 
+        JButton storageStatusButton = createStyledButton("📊 Storage Status", new Color(52, 152, 219), "status.png");
+        storageStatusButton.addActionListener(e -> showStorageStatus());
+        backupButtonsPanel.add(storageStatusButton);
+
+        JButton analyticsExportButton = createStyledButton("📦 Analytics Export", new Color(155, 89, 182), "export.png");
+        analyticsExportButton.addActionListener(e -> exportAnalytics());
+        backupButtonsPanel.add(analyticsExportButton);
+
         backupPanel.add(backupButtonsPanel, BorderLayout.CENTER);
 
         // User Management panel
@@ -1988,8 +2294,7 @@ public class CarRetailSystem extends JFrame {
         formPanel.add(createFormLabel("Status:"), gbc);
 
         gbc.gridx = 1;
-        String[] statusOptions = {"Available", "Sold", "Reserved", "In Service"};
-        JComboBox<String> statusCombo = new JComboBox<>(statusOptions);
+        JComboBox<CarStatus> statusCombo = new JComboBox<>(CarStatus.values());
         statusCombo.setFont(new Font("Segoe UI", Font.PLAIN, 14));
         formPanel.add(statusCombo, gbc);
 
@@ -2011,24 +2316,31 @@ public class CarRetailSystem extends JFrame {
         saveButton.addActionListener(e -> {
             // Validate and save car
             try {
-                Car car = new Car(
-                        cars.size() + 1,
+                Car owner = vinIndex.find(vinField.getText());
+                if (owner != null) {
+                    JOptionPane.showMessageDialog(dialog, "VIN " + vinKey(vinField.getText()) + " already belongs to car #"
+                            + owner.getId() + " (" + owner.getMake() + " " + owner.getModel() + ")", "Duplicate VIN", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Car car = createCar(
+                        carIds.next(),
                         makeField.getText(),
                         modelField.getText(),
                         Integer.parseInt(yearField.getText()),
                         colorField.getText(),
                         Double.parseDouble(priceField.getText()),
-                        (String) statusCombo.getSelectedItem(),
+                        (CarStatus) statusCombo.getSelectedItem(),
                         Integer.parseInt(mileageField.getText()),
                         vinField.getText()
                 );
 
                 cars.add(car);
-                refreshInventoryTable();
                 dialog.dispose();
                 JOptionPane.showMessageDialog(this, "Car added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter valid numbers for year, price and mileage", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalArgumentException | IllegalStateException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         });
 
@@ -2097,9 +2409,12 @@ public class CarRetailSystem extends JFrame {
         gbc.gridx = 1;
         JComboBox<String> carCombo = new JComboBox<>();
         carCombo.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        cars.stream()
-                .filter(c -> c.getStatus().equals("Available"))
+        carStatusIndex.carsWith(CarStatus.AVAILABLE)
                 .forEach(c -> carCombo.addItem(c.getMake() + " " + c.getModel() + " (" + c.getId() + ")"));
+        // Held cars can only be sold to the customer holding them; sell() checks that
+        carStatusIndex.carsWith(CarStatus.RESERVED).stream()
+                .filter(c -> saleTransactions.holdOn(c.getId()) != null)
+                .forEach(c -> carCombo.addItem(c.getMake() + " " + c.getModel() + " [reserved] (" + c.getId() + ")"));
         formPanel.add(carCombo, gbc);
 
         gbc.gridx = 0;
@@ -2151,28 +2466,13 @@ public class CarRetailSystem extends JFrame {
                 int carId = Integer.parseInt(carCombo.getSelectedItem().toString().split("\\(")[1].replace(")", ""));
                 int employeeId = Integer.parseInt(employeeCombo.getSelectedItem().toString().split("\\(")[1].replace(")", ""));
 
-                Sale sale = new Sale(
-                        sales.size() + 1,
-                        dateField.getText(),
-                        customerId,
-                        carId,
-                        Double.parseDouble(priceField.getText()),
-                        employeeId,
-                        (String) paymentCombo.getSelectedItem()
-                );
-
-                sales.add(sale);
-
-                // Update car status
-                cars.stream()
-                        .filter(c -> c.getId() == carId)
-                        .findFirst()
-                        .ifPresent(c -> c.setStatus("Sold"));
+                saleTransactions.sell(carId, customerId, employeeId, dateField.getText(),
+                        Double.parseDouble(priceField.getText()), (String) paymentCombo.getSelectedItem());
 
-                refreshSalesTable();
-                refreshInventoryTable();
                 dialog.dispose();
                 JOptionPane.showMessageDialog(this, "Sale recorded successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+            } catch (IllegalStateException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog(this, "Please fill all fields correctly", "Error", JOptionPane.ERROR_MESSAGE);
             }
@@ -2260,8 +2560,15 @@ public class CarRetailSystem extends JFrame {
                 return;
             }
 
+            int customerId;
+            try {
+                customerId = customerIds.next();
+            } catch (IllegalStateException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             Customer customer = new Customer(
-                    customers.size() + 1,
+                    customerId,
                     nameField.getText(),
                     phoneField.getText(),
                     emailField.getText(),
@@ -2270,7 +2577,6 @@ public class CarRetailSystem extends JFrame {
             );
 
             customers.add(customer);
-            refreshCustomersTable();
             dialog.dispose();
             JOptionPane.showMessageDialog(this, "Customer added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
         });
@@ -2386,7 +2692,7 @@ public class CarRetailSystem extends JFrame {
         saveButton.addActionListener(e -> {
             try {
                 Employee employee = new Employee(
-                        employees.size() + 1,
+                        employeeIds.next(),
                         nameField.getText(),
                         (String) positionCombo.getSelectedItem(),
                         phoneField.getText(),
@@ -2398,11 +2704,12 @@ public class CarRetailSystem extends JFrame {
                 );
 
                 employees.add(employee);
-                refreshEmployeesTable();
                 dialog.dispose();
                 JOptionPane.showMessageDialog(this, "Employee added successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid salary", "Error", JOptionPane.ERROR_MESSAGE);
+            } catch (IllegalStateException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         });
 
@@ -2615,18 +2922,142 @@ public class CarRetailSystem extends JFrame {
         JOptionPane.showMessageDialog(this, "Select a report type and date range to generate a report", "Generate Report", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    private void showStorageStatus() {
+        if (journal != null) {
+            String lastSnapshot = journal.getLastSnapshotMillis() == 0 ? "not this session"
+                    : new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(journal.getLastSnapshotMillis()));
+            String message = String.format("Journal directory: %s%nCurrent segment: %d%nChanges since last snapshot: %d%nLast snapshot: %s",
+                    journal.getDirectory().toAbsolutePath(), journal.getCurrentSegment(),
+                    journal.getRecordsSinceSnapshot(), lastSnapshot);
+            JOptionPane.showMessageDialog(this, message, "Storage Status", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        if (writeBehind == null) {
+            JOptionPane.showMessageDialog(this, "No database or journal configured, data is kept in memory only", "Storage Status", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String message = String.format("Pending writes: %d%nFlushes: %d%nRows written: %d%nFailed flushes: %d%nLast flush: %.1f ms%nAverage flush: %.1f ms",
+                writeBehind.getQueueDepth(), writeBehind.getFlushCount(), writeBehind.getRowsWritten(),
+                writeBehind.getFailureCount(), writeBehind.getLastFlushMillis(), writeBehind.getAverageFlushMillis());
+        JOptionPane.showMessageDialog(this, message, "Storage Status", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private void showAlertsDialog() {
         JOptionPane.showMessageDialog(this, "No alerts at this time", "View Alerts", JOptionPane.INFORMATION_MESSAGE);
     }
 
     // Data methods
+    private void loadData() {
+        String url = System.getProperty("carretail.jdbc.url");
+        if (url == null || url.isEmpty()) {
+            if (Boolean.parseBoolean(System.getProperty("carretail.journal", "true"))) {
+                openJournal();
+            } else {
+                loadSampleData();
+            }
+            return;
+        }
+
+        try {
+            ConnectionPool pool = new ConnectionPool(url,
+                    System.getProperty("carretail.jdbc.user", ""),
+                    System.getProperty("carretail.jdbc.password", ""),
+                    Integer.getInteger("carretail.jdbc.poolSize", 4));
+            JdbcStore store = new JdbcStore(pool);
+            store.createSchema(carTable, customerTable, employeeTable, saleTable);
+            idStore = new JdbcIdStore(store);
+            // Read everything before touching the repositories so a failure leaves them empty
+            List<Car> loadedCars = new ArrayList<>();
+            List<Customer> loadedCustomers = new ArrayList<>();
+            List<Employee> loadedEmployees = new ArrayList<>();
+            List<Sale> loadedSales = new ArrayList<>();
+            store.load(carTable, loadedCars::add);
+            store.load(customerTable, loadedCustomers::add);
+            store.load(employeeTable, loadedEmployees::add);
+            store.load(saleTable, loadedSales::add);
+            loadedCars.forEach(cars::add);
+            loadedCustomers.forEach(customers::add);
+            loadedEmployees.forEach(employees::add);
+            loadedSales.forEach(sales::add);
+            jdbcStore = store;
+        } catch (SQLException e) {
+            JOptionPane.showMessageDialog(this, "Could not open database, using sample data: " + e.getMessage(), "Database Error", JOptionPane.ERROR_MESSAGE);
+            loadSampleData();
+            return;
+        }
+
+        // Attach after loading so rows read from the database aren't written straight back.
+        // Writes go through a background queue so saving never blocks the EDT.
+        writeBehind = new WriteBehindQueue(jdbcStore,
+                Integer.getInteger("carretail.jdbc.flushRows", 200),
+                Long.getLong("carretail.jdbc.flushMillis", 500L));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writeBehind.close();
+            jdbcStore.close();
+        }, "write-behind-shutdown"));
+        cars.addListener(new WriteBehindListener<>(carTable, this::copyOf));
+        customers.addListener(new WriteBehindListener<>(customerTable, this::copyOf));
+        employees.addListener(new WriteBehindListener<>(employeeTable, this::copyOf));
+        sales.addListener(new WriteBehindListener<>(saleTable, sale -> sale));
+
+        if (cars.isEmpty() && customers.isEmpty() && employees.isEmpty() && sales.isEmpty()) {
+            loadSampleData();
+        }
+    }
+
+    // Without a database the repositories are made durable by the local journal: load the
+    // latest snapshot plus the journal tail, or sample data on first run
+    private void openJournal() {
+        Path directory = Path.of(System.getProperty("carretail.data.dir", "data"));
+        try {
+            idStore = new FileIdStore(directory.resolve("ids.properties"));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not read the id file in " + directory + ", ids won't be reserved across restarts: " + e.getMessage(), "Journal Error", JOptionPane.ERROR_MESSAGE);
+        }
+        JournalRecovery recovered;
+        try {
+            recovered = new JournalReplayer().recover(directory);
+        } catch (IOException e) {
+            // Don't journal over files we couldn't read
+            JOptionPane.showMessageDialog(this, "Could not read the journal in " + directory + ", changes won't be saved this session: " + e.getMessage(), "Journal Error", JOptionPane.ERROR_MESSAGE);
+            loadSampleData();
+            return;
+        }
+
+        if (recovered.data != null) {
+            replaceAllData(recovered.data);
+        } else {
+            loadSampleData();
+        }
+
+        try {
+            journal = new Journal(directory, recovered.nextSegment, Integer.getInteger("carretail.journal.snapshotEvery", 10000));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Could not open the journal in " + directory + ", changes won't be saved this session: " + e.getMessage(), "Journal Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "journal-shutdown"));
+        cars.addListener(new JournalListener<>(SECTION_CARS, Car::getId));
+        customers.addListener(new JournalListener<>(SECTION_CUSTOMERS, Customer::getId));
+        employees.addListener(new JournalListener<>(SECTION_EMPLOYEES, Employee::getId));
+        sales.addListener(new JournalListener<>(SECTION_SALES, Sale::getId));
+
+        // Persist first-run data, and fold a replayed tail into a snapshot so the next
+        // startup doesn't replay it again
+        if (recovered.data == null || recovered.replayedRecords > 0) {
+            journal.snapshot();
+        }
+        int minutes = Integer.getInteger("carretail.journal.snapshotMinutes", 10);
+        new Timer(minutes * 60_000, e -> journal.snapshotIfDirty()).start();
+    }
+
     private void loadSampleData() {
         // Sample cars
-        cars.add(new Car(1, "Toyota", "Camry", 2022, "Silver", 25000, "Available", 15000, "JT2BF22K1W0123456"));
-        cars.add(new Car(2, "Honda", "Accord", 2021, "Black", 28500, "Available", 22000, "1HGCM82633A123456"));
-        cars.add(new Car(3, "Ford", "Mustang", 2023, "Red", 42000, "Available", 5000, "1FA6P8TH3J5123456"));
-        cars.add(new Car(4, "Tesla", "Model 3", 2023, "White", 48000, "Available", 8000, "5YJ3E1EA1PF123456"));
-        cars.add(new Car(5, "BMW", "X5", 2022, "Blue", 62000, "Available", 18000, "5UXCR6C05N9123456"));
+        cars.add(createCar(1, "Toyota", "Camry", 2022, "Silver", 25000, CarStatus.AVAILABLE, 15000, "JT2BF22K1W0123456"));
+        cars.add(createCar(2, "Honda", "Accord", 2021, "Black", 28500, CarStatus.AVAILABLE, 22000, "1HGCM82633A123456"));
+        cars.add(createCar(3, "Ford", "Mustang", 2023, "Red", 42000, CarStatus.AVAILABLE, 5000, "1FA6P8TH3J5123456"));
+        cars.add(createCar(4, "Tesla", "Model 3", 2023, "White", 48000, CarStatus.AVAILABLE, 8000, "5YJ3E1EA1PF123456"));
+        cars.add(createCar(5, "BMW", "X5", 2022, "Blue", 62000, CarStatus.AVAILABLE, 18000, "5UXCR6C05N9123456"));
 
         // Sample customers
         customers.add(new Customer(1, "John Doe", "555-0101", "john@example.com", "123 Main St, Anytown", "DL12345678"));
@@ -2650,11 +3081,9 @@ public class CarRetailSystem extends JFrame {
         sales.add(new Sale(5, "2023-05-12", 5, 5, 62000, 4, "Bank Loan"));
 
         // Update car statuses for sold cars
-        cars.get(0).setStatus("Sold");
-        cars.get(1).setStatus("Sold");
-        cars.get(2).setStatus("Sold");
-        cars.get(3).setStatus("Sold");
-        cars.get(4).setStatus("Sold");
+        for (Car car : cars) {
+            cars.update(car, sold -> sold.setStatus(CarStatus.SOLD));
+        }
 
         // Refresh all tables
         refreshInventoryTable();
@@ -2663,105 +3092,93 @@ public class CarRetailSystem extends JFrame {
         refreshEmployeesTable();
     }
 
-    private void refreshInventoryTable() {
-        inventoryModel.setRowCount(0);
-        for (Car car : cars) {
-            inventoryModel.addRow(new Object[]{
-                    car.getId(),
-                    car.getMake(),
-                    car.getModel(),
-                    car.getYear(),
-                    car.getColor(),
-                    currencyFormat.format(car.getPrice()),
-                    car.getStatus(),
-                    car.getMileage(),
-                    car.getVin()
-            });
+    // Id lookups for joined columns, all O(1) through the repository indexes
+    // Every car is created here so the storage mode is decided in one place
+    Car createCar(int id, String make, String model, int year, String color, double price, CarStatus status, int mileage, String vin) {
+        if (carColumns != null) {
+            return new CompactCar(new HeapCar(id, make, model, year, color, price, status, mileage, vin));
         }
+        return new HeapCar(id, make, model, year, color, price, status, mileage, vin);
+    }
+
+    // These also run on search and export workers, hence the read locks
+    // Detached copies for work that outlives the repository's lock (backups, write-behind)
+    Car copyOf(Car car) {
+        return new HeapCar(car.getId(), car.getMake(), car.getModel(), car.getYear(), car.getColor(),
+                car.getPrice(), car.getStatus(), car.getMileage(), car.getVin());
+    }
+
+    Customer copyOf(Customer customer) {
+        return new Customer(customer.getId(), customer.getName(), customer.getPhone(),
+                customer.getEmail(), customer.getAddress(), customer.getDriverLicense());
+    }
+
+    Employee copyOf(Employee employee) {
+        return new Employee(employee.getId(), employee.getName(), employee.getPosition(),
+                employee.getPhone(), employee.getEmail(), employee.getHireDate(), employee.getSalary(),
+                employee.getUsername(), employee.getPassword());
+    }
+
+    private String customerName(int customerId) {
+        return customers.read(() -> {
+            Customer customer = customers.findById(customerId);
+            return customer != null ? customer.getName() : "Unknown";
+        });
+    }
+
+    private String carDetails(int carId) {
+        return cars.read(() -> {
+            Car car = cars.findById(carId);
+            return car != null ? car.getMake() + " " + car.getModel() : "Unknown";
+        });
+    }
+
+    private String employeeName(int employeeId) {
+        return employees.read(() -> {
+            Employee employee = employees.findById(employeeId);
+            return employee != null ? employee.getName() : "Unknown";
+        });
+    }
+
+    // Runs the search once typing pauses for carretail.search.debounceMillis (default 150),
+    // and straight away when the search type changes
+    private void searchAsYouType(JTextField field, JComboBox<String> type, BiConsumer<String, String> search) {
+        Timer debounce = new Timer(Integer.getInteger("carretail.search.debounceMillis", 150),
+                e -> search.accept(field.getText(), (String) type.getSelectedItem()));
+        debounce.setRepeats(false);
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) { debounce.restart(); }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) { debounce.restart(); }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) { }
+        });
+        type.addActionListener(e -> {
+            debounce.stop();
+            search.accept(field.getText(), (String) type.getSelectedItem());
+        });
+    }
+
+    // Refreshes, searches and filters all run through each table's TableQueryRunner, off
+    // the EDT; the model keeps the filter so later inserts and edits are placed (or
+    // dropped) without re-running the search.
+    private void refreshInventoryTable() {
+        inventoryQueries.show(cars::snapshot, null);
     }
 
     private void refreshSalesTable() {
-        salesModel.setRowCount(0);
-        for (Sale sale : sales) {
-            // Find customer name
-            String customerName = customers.stream()
-                    .filter(c -> c.getId() == sale.getCustomerId())
-                    .findFirst()
-                    .map(Customer::getName)
-                    .orElse("Unknown");
-
-            // Find car details
-            String carDetails = cars.stream()
-                    .filter(c -> c.getId() == sale.getCarId())
-                    .findFirst()
-                    .map(c -> c.getMake() + " " + c.getModel())
-                    .orElse("Unknown");
-
-            // Find employee name
-            String employeeName = employees.stream()
-                    .filter(e -> e.getId() == sale.getEmployeeId())
-                    .findFirst()
-                    .map(Employee::getName)
-                    .orElse("Unknown");
-
-            salesModel.addRow(new Object[]{
-                    sale.getId(),
-                    sale.getDate(),
-                    customerName,
-                    carDetails,
-                    currencyFormat.format(sale.getPrice()),
-                    employeeName,
-                    sale.getPaymentMethod()
-            });
-        }
+        salesQueries.show(sales::snapshot, null);
     }
 
     private void refreshCustomersTable() {
-        customersModel.setRowCount(0);
-        for (Customer customer : customers) {
-            // Count purchases
-            long purchaseCount = sales.stream()
-                    .filter(s -> s.getCustomerId() == customer.getId())
-                    .count();
-
-            // Find last purchase date
-            String lastPurchase = sales.stream()
-                    .filter(s -> s.getCustomerId() == customer.getId())
-                    .map(Sale::getDate)
-                    .max(String::compareTo)
-                    .orElse("Never");
-
-            customersModel.addRow(new Object[]{
-                    customer.getId(),
-                    customer.getName(),
-                    customer.getPhone(),
-                    customer.getEmail(),
-                    customer.getAddress(),
-                    purchaseCount,
-                    lastPurchase
-            });
-        }
+        customersQueries.show(customers::snapshot, null);
     }
 
     private void refreshEmployeesTable() {
-        employeesModel.setRowCount(0);
-        for (Employee employee : employees) {
-            // Count sales
-            long salesCount = sales.stream()
-                    .filter(s -> s.getEmployeeId() == employee.getId())
-                    .count();
-
-            employeesModel.addRow(new Object[]{
-                    employee.getId(),
-                    employee.getName(),
-                    employee.getPosition(),
-                    employee.getPhone(),
-                    employee.getEmail(),
-                    employee.getHireDate(),
-                    currencyFormat.format(employee.getSalary()),
-                    salesCount
-            });
-        }
+        employeesQueries.show(employees::snapshot, null);
     }
 
     private void searchInventory(String query, String searchType) {
@@ -2770,138 +3187,153 @@ public class CarRetailSystem extends JFrame {
             return;
         }
 
-        inventoryModel.setRowCount(0);
-        for (Car car : cars) {
-            boolean match = false;
-            String queryLower = query.toLowerCase();
-
-            switch (searchType) {
-                case "All":
-                    match = car.getMake().toLowerCase().contains(queryLower) ||
-                            car.getModel().toLowerCase().contains(queryLower) ||
-                            String.valueOf(car.getYear()).contains(query) ||
-                            car.getColor().toLowerCase().contains(queryLower) ||
-                            String.valueOf(car.getPrice()).contains(query) ||
-                            car.getStatus().toLowerCase().contains(queryLower) ||
-                            String.valueOf(car.getMileage()).contains(query) ||
-                            car.getVin().toLowerCase().contains(queryLower);
-                    break;
-                case "Make":
-                    match = car.getMake().toLowerCase().contains(queryLower);
-                    break;
-                case "Model":
-                    match = car.getModel().toLowerCase().contains(queryLower);
-                    break;
-                case "Year":
-                    match = String.valueOf(car.getYear()).contains(query);
-                    break;
-                case "Color":
-                    match = car.getColor().toLowerCase().contains(queryLower);
-                    break;
-                case "Price Range":
+        String queryLower = query.toLowerCase();
+        Predicate<Car> filter;
+        switch (searchType) {
+            case "All":
+                filter = car -> carSearchIndex.matches(car, queryLower);
+                if (queryLower.length() >= CarSearchIndex.GRAM) {
+                    // Long enough for the trigram index: only verify its candidates
+                    inventoryQueries.show(() -> carSearchIndex.search(queryLower), filter);
+                    return;
+                }
+                break;
+            case "Make":
+                filter = car -> car.getMake().toLowerCase().contains(queryLower);
+                break;
+            case "Model":
+                filter = car -> car.getModel().toLowerCase().contains(queryLower);
+                break;
+            case "Year":
+                // "2020-2022" or a full year goes through the year index; partial input
+                // like "202" keeps the old substring match
+                int[] years = query.trim().matches("\\d{4}")
+                        ? new int[]{Integer.parseInt(query.trim()), Integer.parseInt(query.trim())}
+                        : parseIntRange(query);
+                if (years != null) {
+                    inventoryQueries.show(() -> carYearIndex.between(years[0], years[1]),
+                            car -> car.getYear() >= years[0] && car.getYear() <= years[1]);
+                    return;
+                }
+                filter = car -> String.valueOf(car.getYear()).contains(query);
+                break;
+            case "Color":
+                filter = car -> car.getColor().toLowerCase().contains(queryLower);
+                break;
+            case "Price Range":
+                double min, max;
+                try {
+                    if (query.contains("-")) {
+                        String[] range = query.split("-");
+                        min = Double.parseDouble(range[0].trim());
+                        max = Double.parseDouble(range[1].trim());
+                    } else {
+                        double target = Double.parseDouble(query);
+                        min = target * 0.9;
+                        max = target * 1.1;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    inventoryQueries.show(Collections::emptyList, car -> false);
+                    return;
+                }
+                int minCents = (int) Math.max(Integer.MIN_VALUE, Math.ceil(min * 100));
+                int maxCents = (int) Math.min(Integer.MAX_VALUE, Math.floor(max * 100));
+                inventoryQueries.show(() -> carPriceIndex.between(minCents, maxCents),
+                        car -> priceCents(car) >= minCents && priceCents(car) <= maxCents);
+                return;
+            case "Mileage":
+                // "a-b" is a range, a single number is a cap
+                int[] miles = parseIntRange(query);
+                if (miles == null) {
                     try {
-                        double price = car.getPrice();
-                        if (query.contains("-")) {
-                            String[] range = query.split("-");
-                            double min = Double.parseDouble(range[0].trim());
-                            double max = Double.parseDouble(range[1].trim());
-                            match = price >= min && price <= max;
-                        } else {
-                            double target = Double.parseDouble(query);
-                            match = price >= target * 0.9 && price <= target * 1.1;
-                        }
+                        miles = new int[]{0, Integer.parseInt(query.trim())};
                     } catch (NumberFormatException e) {
-                        continue;
+                        inventoryQueries.show(Collections::emptyList, car -> false);
+                        return;
                     }
-                    break;
-                case "Status":
-                    match = car.getStatus().equalsIgnoreCase(query);
-                    break;
-            }
+                }
+                int[] mileage = miles;
+                inventoryQueries.show(() -> carMileageIndex.between(mileage[0], mileage[1]),
+                        car -> car.getMileage() >= mileage[0] && car.getMileage() <= mileage[1]);
+                return;
+            case "Status":
+                CarStatus status = CarStatus.fromLabel(query.trim());
+                if (status == null) {
+                    inventoryQueries.show(Collections::emptyList, car -> false);
+                } else {
+                    inventoryQueries.show(() -> carStatusIndex.carsWith(status), car -> car.getStatus() == status);
+                }
+                return;
+            case "VIN":
+                String prefix = vinKey(query);
+                if (prefix == null) {
+                    inventoryQueries.show(Collections::emptyList, car -> false);
+                } else {
+                    inventoryQueries.show(() -> vinIndex.withPrefix(prefix), car -> {
+                        String key = vinKey(car.getVin());
+                        return key != null && key.startsWith(prefix);
+                    });
+                }
+                return;
+            default:
+                filter = car -> false;
+        }
+        inventoryQueries.search(searchType, query, filter);
+    }
 
-            if (match) {
-                inventoryModel.addRow(new Object[]{
-                        car.getId(),
-                        car.getMake(),
-                        car.getModel(),
-                        car.getYear(),
-                        car.getColor(),
-                        currencyFormat.format(car.getPrice()),
-                        car.getStatus(),
-                        car.getMileage(),
-                        car.getVin()
-                });
-            }
+    // "min-max" as two ints, or null when the text isn't a range
+    private int[] parseIntRange(String query) {
+        int dash = query.indexOf('-', 1);
+        if (dash < 0) return null;
+        try {
+            int min = Integer.parseInt(query.substring(0, dash).trim());
+            int max = Integer.parseInt(query.substring(dash + 1).trim());
+            return new int[]{Math.min(min, max), Math.max(min, max)};
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
+    // Prices are indexed as whole cents so the price index can stay a primitive int key
+    private static int priceCents(Car car) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(car.getPrice() * 100)));
+    }
+
     private void searchSales(String query, String searchType) {
         if (query.isEmpty()) {
             refreshSalesTable();
             return;
         }
 
-        salesModel.setRowCount(0);
-        for (Sale sale : sales) {
-            boolean match = false;
-            String queryLower = query.toLowerCase();
-
-            // Find customer name
-            String customerName = customers.stream()
-                    .filter(c -> c.getId() == sale.getCustomerId())
-                    .findFirst()
-                    .map(Customer::getName)
-                    .orElse("Unknown");
-
-            // Find car details
-            String carDetails = cars.stream()
-                    .filter(c -> c.getId() == sale.getCarId())
-                    .findFirst()
-                    .map(c -> c.getMake() + " " + c.getModel())
-                    .orElse("Unknown");
-
-            // Find employee name
-            String employeeName = employees.stream()
-                    .filter(e -> e.getId() == sale.getEmployeeId())
-                    .findFirst()
-                    .map(Employee::getName)
-                    .orElse("Unknown");
-
-            switch (searchType) {
-                case "All":
-                    match = sale.getDate().contains(query) ||
-                            customerName.toLowerCase().contains(queryLower) ||
-                            carDetails.toLowerCase().contains(queryLower) ||
-                            String.valueOf(sale.getPrice()).contains(query) ||
-                            employeeName.toLowerCase().contains(queryLower) ||
-                            sale.getPaymentMethod().toLowerCase().contains(queryLower);
-                    break;
-                case "Customer":
-                    match = customerName.toLowerCase().contains(queryLower);
-                    break;
-                case "Car":
-                    match = carDetails.toLowerCase().contains(queryLower);
-                    break;
-                case "Salesperson":
-                    match = employeeName.toLowerCase().contains(queryLower);
-                    break;
-                case "Payment Method":
-                    match = sale.getPaymentMethod().toLowerCase().contains(queryLower);
-                    break;
-            }
-
-            if (match) {
-                salesModel.addRow(new Object[]{
-                        sale.getId(),
-                        sale.getDate(),
-                        customerName,
-                        carDetails,
-                        currencyFormat.format(sale.getPrice()),
-                        employeeName,
-                        sale.getPaymentMethod()
-                });
-            }
+        String queryLower = query.toLowerCase();
+        Predicate<Sale> filter;
+        switch (searchType) {
+            case "All":
+                filter = sale -> sale.getDate().contains(query) ||
+                        customerName(sale.getCustomerId()).toLowerCase().contains(queryLower) ||
+                        carDetails(sale.getCarId()).toLowerCase().contains(queryLower) ||
+                        String.valueOf(sale.getPrice()).contains(query) ||
+                        employeeName(sale.getEmployeeId()).toLowerCase().contains(queryLower) ||
+                        sale.getPaymentMethod().toLowerCase().contains(queryLower);
+                break;
+            case "Customer":
+                filter = sale -> customerName(sale.getCustomerId()).toLowerCase().contains(queryLower);
+                break;
+            case "Car":
+                filter = sale -> carDetails(sale.getCarId()).toLowerCase().contains(queryLower);
+                break;
+            case "Salesperson":
+                filter = sale -> employeeName(sale.getEmployeeId()).toLowerCase().contains(queryLower);
+                break;
+            case "Payment Method":
+                // Only the distinct payment methods are compared; rows are matched by code
+                salesQueries.show(() -> salesLedger.withPaymentMethodContaining(queryLower),
+                        sale -> sale.getPaymentMethod() != null && sale.getPaymentMethod().toLowerCase().contains(queryLower));
+                return;
+            default:
+                filter = sale -> false;
         }
+        salesQueries.search(searchType, query, filter);
     }
 
     private void searchCustomers(String query, String searchType) {
@@ -2910,56 +3342,31 @@ public class CarRetailSystem extends JFrame {
             return;
         }
 
-        customersModel.setRowCount(0);
-        for (Customer customer : customers) {
-            boolean match = false;
-            String queryLower = query.toLowerCase();
-
-            switch (searchType) {
-                case "All":
-                    match = customer.getName().toLowerCase().contains(queryLower) ||
-                            customer.getPhone().contains(query) ||
-                            customer.getEmail().toLowerCase().contains(queryLower) ||
-                            customer.getAddress().toLowerCase().contains(queryLower);
-                    break;
-                case "Name":
-                    match = customer.getName().toLowerCase().contains(queryLower);
-                    break;
-                case "Phone":
-                    match = customer.getPhone().contains(query);
-                    break;
-                case "Email":
-                    match = customer.getEmail().toLowerCase().contains(queryLower);
-                    break;
-                case "Address":
-                    match = customer.getAddress().toLowerCase().contains(queryLower);
-                    break;
-            }
-
-            if (match) {
-                // Count purchases
-                long purchaseCount = sales.stream()
-                        .filter(s -> s.getCustomerId() == customer.getId())
-                        .count();
-
-                // Find last purchase date
-                String lastPurchase = sales.stream()
-                        .filter(s -> s.getCustomerId() == customer.getId())
-                        .map(Sale::getDate)
-                        .max(String::compareTo)
-                        .orElse("Never");
-
-                customersModel.addRow(new Object[]{
-                        customer.getId(),
-                        customer.getName(),
-                        customer.getPhone(),
-                        customer.getEmail(),
-                        customer.getAddress(),
-                        purchaseCount,
-                        lastPurchase
-                });
-            }
+        String queryLower = query.toLowerCase();
+        Predicate<Customer> filter;
+        switch (searchType) {
+            case "All":
+                filter = customer -> customer.getName().toLowerCase().contains(queryLower) ||
+                        customer.getPhone().contains(query) ||
+                        customer.getEmail().toLowerCase().contains(queryLower) ||
+                        customer.getAddress().toLowerCase().contains(queryLower);
+                break;
+            case "Name":
+                filter = customer -> customer.getName().toLowerCase().contains(queryLower);
+                break;
+            case "Phone":
+                filter = customer -> customer.getPhone().contains(query);
+                break;
+            case "Email":
+                filter = customer -> customer.getEmail().toLowerCase().contains(queryLower);
+                break;
+            case "Address":
+                filter = customer -> customer.getAddress().toLowerCase().contains(queryLower);
+                break;
+            default:
+                filter = customer -> false;
         }
+        customersQueries.search(searchType, query, filter);
     }
 
     private void searchEmployees(String query, String searchType) {
@@ -2968,50 +3375,31 @@ public class CarRetailSystem extends JFrame {
             return;
         }
 
-        employeesModel.setRowCount(0);
-        for (Employee employee : employees) {
-            boolean match = false;
-            String queryLower = query.toLowerCase();
-
-            switch (searchType) {
-                case "All":
-                    match = employee.getName().toLowerCase().contains(queryLower) ||
-                            employee.getPosition().toLowerCase().contains(queryLower) ||
-                            employee.getPhone().contains(query) ||
-                            employee.getEmail().toLowerCase().contains(queryLower);
-                    break;
-                case "Name":
-                    match = employee.getName().toLowerCase().contains(queryLower);
-                    break;
-                case "Position":
-                    match = employee.getPosition().toLowerCase().contains(queryLower);
-                    break;
-                case "Phone":
-                    match = employee.getPhone().contains(query);
-                    break;
-                case "Email":
-                    match = employee.getEmail().toLowerCase().contains(queryLower);
-                    break;
-            }
-
-            if (match) {
-                // Count sales
-                long salesCount = sales.stream()
-                        .filter(s -> s.getEmployeeId() == employee.getId())
-                        .count();
-
-                employeesModel.addRow(new Object[]{
-                        employee.getId(),
-                        employee.getName(),
-                        employee.getPosition(),
-                        employee.getPhone(),
-                        employee.getEmail(),
-                        employee.getHireDate(),
-                        currencyFormat.format(employee.getSalary()),
-                        salesCount
-                });
-            }
+        String queryLower = query.toLowerCase();
+        Predicate<Employee> filter;
+        switch (searchType) {
+            case "All":
+                filter = employee -> employee.getName().toLowerCase().contains(queryLower) ||
+                        employee.getPosition().toLowerCase().contains(queryLower) ||
+                        employee.getPhone().contains(query) ||
+                        employee.getEmail().toLowerCase().contains(queryLower);
+                break;
+            case "Name":
+                filter = employee -> employee.getName().toLowerCase().contains(queryLower);
+                break;
+            case "Position":
+                filter = employee -> employee.getPosition().toLowerCase().contains(queryLower);
+                break;
+            case "Phone":
+                filter = employee -> employee.getPhone().contains(query);
+                break;
+            case "Email":
+                filter = employee -> employee.getEmail().toLowerCase().contains(queryLower);
+                break;
+            default:
+                filter = employee -> false;
         }
+        employeesQueries.search(searchType, query, filter);
     }
 
     private void filterByStatus(String status) {
@@ -3020,22 +3408,8 @@ public class CarRetailSystem extends JFrame {
             return;
         }
 
-        inventoryModel.setRowCount(0);
-        for (Car car : cars) {
-            if (car.getStatus().equals(status)) {
-                inventoryModel.addRow(new Object[]{
-                        car.getId(),
-                        car.getMake(),
-                        car.getModel(),
-                        car.getYear(),
-                        car.getColor(),
-                        currencyFormat.format(car.getPrice()),
-                        car.getStatus(),
-                        car.getMileage(),
-                        car.getVin()
-                });
-            }
-        }
+        CarStatus carStatus = CarStatus.fromLabel(status);
+        inventoryQueries.show(() -> carStatusIndex.carsWith(carStatus), car -> car.getStatus() == carStatus);
     }
 
     private void filterSalesByDate(String fromDate, String toDate) {
@@ -3044,131 +3418,5478 @@ public class CarRetailSystem extends JFrame {
             return;
         }
 
-        salesModel.setRowCount(0);
-        for (Sale sale : sales) {
-            boolean match = true;
-
-            if (!fromDate.isEmpty()) {
-                match = match && sale.getDate().compareTo(fromDate) >= 0;
-            }
-
-            if (!toDate.isEmpty()) {
-                match = match && sale.getDate().compareTo(toDate) <= 0;
-            }
-
-            if (match) {
-                // Find customer name
-                String customerName = customers.stream()
-                        .filter(c -> c.getId() == sale.getCustomerId())
-                        .findFirst()
-                        .map(Customer::getName)
-                        .orElse("Unknown");
-
-                // Find car details
-                String carDetails = cars.stream()
-                        .filter(c -> c.getId() == sale.getCarId())
-                        .findFirst()
-                        .map(c -> c.getMake() + " " + c.getModel())
-                        .orElse("Unknown");
-
-                // Find employee name
-                String employeeName = employees.stream()
-                        .filter(e -> e.getId() == sale.getEmployeeId())
-                        .findFirst()
-                        .map(Employee::getName)
-                        .orElse("Unknown");
-
-                salesModel.addRow(new Object[]{
-                        sale.getId(),
-                        sale.getDate(),
-                        customerName,
-                        carDetails,
-                        currencyFormat.format(sale.getPrice()),
-                        employeeName,
-                        sale.getPaymentMethod()
-                });
-            }
+        int fromDay, toDay;
+        try {
+            fromDay = epochDayBound(fromDate.trim(), false);
+            toDay = epochDayBound(toDate.trim(), true);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter dates as yyyy-MM-dd, yyyy-MM or yyyy", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
         }
+
+        salesQueries.show(() -> salesLedger.between(fromDay, toDay),
+                sale -> sale.getEpochDay() >= fromDay && sale.getEpochDay() <= toDay);
     }
 
-    private void exportToCSV(JTable table, String fileName) {
-        try (PrintWriter writer = new PrintWriter(new File(fileName))) {
-            // Write headers
-            for (int i = 0; i < table.getColumnCount(); i++) {
-                writer.print(table.getColumnName(i));
-                if (i < table.getColumnCount() - 1) {
-                    writer.print(",");
-                }
-            }
-            writer.println();
+    // First (or last, when upper) epoch day covered by a yyyy-MM-dd, yyyy-MM or yyyy bound
+    private int epochDayBound(String text, boolean upper) {
+        if (text.isEmpty()) {
+            return upper ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        }
+        LocalDate day;
+        if (text.length() == 4) {
+            int year = Integer.parseInt(text);
+            day = upper ? LocalDate.of(year, 12, 31) : LocalDate.of(year, 1, 1);
+        } else if (text.length() == 7) {
+            YearMonth month = YearMonth.parse(text);
+            day = upper ? month.atEndOfMonth() : month.atDay(1);
+        } else {
+            day = LocalDate.parse(text);
+        }
+        return (int) day.toEpochDay();
+    }
 
-            // Write data
-            for (int i = 0; i < table.getRowCount(); i++) {
-                for (int j = 0; j < table.getColumnCount(); j++) {
-                    Object value = table.getValueAt(i, j);
-                    writer.print(value != null ? value.toString() : "");
-                    if (j < table.getColumnCount() - 1) {
-                        writer.print(",");
+    // Exports the rows the table shows, in its current order. Only the row list is taken on
+    // the EDT; formatting and writing happen in the background with a progress monitor
+    // that can cancel. A name ending in .gz writes a gzip-compressed file.
+    private <T> void exportToCSV(JTable table, EntityTableModel<T> model, Repository<T> repository, String fileName) {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setDialogTitle("Export CSV (end the name with .gz to compress)");
+        chooser.setSelectedFile(new File(fileName));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path target = chooser.getSelectedFile().toPath();
+
+        List<T> rows = new ArrayList<>(table.getRowCount());
+        for (int i = 0; i < table.getRowCount(); i++) {
+            rows.add(model.getRow(table.convertRowIndexToModel(i)));
+        }
+        String[] headers = new String[model.getColumnCount()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = model.getColumnName(i);
+        }
+
+        ProgressMonitor monitor = new ProgressMonitor(this, "Exporting " + rows.size() + " rows to " + target.getFileName(), null, 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        long start = System.nanoTime();
+        SwingWorker<Long, Void> worker = new SwingWorker<>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+                boolean gzip = target.getFileName().toString().toLowerCase().endsWith(".gz");
+                try (CsvWriter csv = new CsvWriter(temp, gzip)) {
+                    for (String header : headers) csv.field(header);
+                    csv.endRow();
+                    for (int i = 0; i < rows.size(); i++) {
+                        if (isCancelled()) break;
+                        T item = rows.get(i);
+                        // Read under the lock so a row being edited is written whole
+                        String[] values = repository.read(() -> {
+                            String[] row = new String[headers.length];
+                            for (int column = 0; column < headers.length; column++) {
+                                Object value = model.exportValue(item, column);
+                                row[column] = value != null ? value.toString() : "";
+                            }
+                            return row;
+                        });
+                        for (String value : values) csv.field(value);
+                        csv.endRow();
+                        if ((i & 1023) == 0) setProgress((int) (i * 100L / rows.size()));
                     }
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
                 }
-                writer.println();
+                if (isCancelled()) {
+                    Files.deleteIfExists(temp);
+                    return 0L;
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return Files.size(target);
             }
 
-            JOptionPane.showMessageDialog(this, "Data exported successfully to " + fileName, "Export Successful", JOptionPane.INFORMATION_MESSAGE);
-        } catch (FileNotFoundException e) {
-            JOptionPane.showMessageDialog(this, "Error exporting data: " + e.getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE);
-        }
+            @Override
+            protected void done() {
+                monitor.close();
+                if (isCancelled()) return;
+                try {
+                    long bytes = get();
+                    double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+                    JOptionPane.showMessageDialog(CarRetailSystem.this,
+                            String.format("Exported %,d rows to %s (%,d bytes) in %.1f s (%,.0f rows/s)",
+                                    rows.size(), target, bytes, seconds, rows.size() / seconds),
+                            "Export Successful", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error exporting data: " + e.getCause().getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        worker.addPropertyChangeListener(event -> {
+            if ("progress".equals(event.getPropertyName())) {
+                monitor.setProgress((Integer) event.getNewValue());
+                if (monitor.isCanceled()) worker.cancel(false);
+            }
+        });
+        worker.execute();
     }
 
-    private void backupData() {
-        try {
-            // Backup cars
-            exportToCSV(new JTable(inventoryModel), "cars_backup.csv");
-
-            // Backup customers
-            exportToCSV(new JTable(customersModel), "customers_backup.csv");
-
-            // Backup employees
-            exportToCSV(new JTable(employeesModel), "employees_backup.csv");
+    // Bulk-adds cars from a shipment manifest: CSV with a header row, or JSON lines (one
+    // flat object per line) when the name ends in .jsonl, .ndjson or .json. Both use the
+    // names in IMPORT_FIELDS; color and status may be left out. Records are parsed and
+    // validated in parallel on the fork-join pool, VINs already in the VIN index or
+    // repeated in the file are rejected, and the rest are added to the inventory in one
+    // batch.
+    private void importCars() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setDialogTitle("Import Cars (CSV or JSON lines)");
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path source = chooser.getSelectedFile().toPath();
+
+        long start = System.nanoTime();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<CarImport, Void>() {
+            @Override
+            protected CarImport doInBackground() throws IOException {
+                CarImport result = readCarManifest(source);
+                if (!result.accepted.isEmpty()) {
+                    result.ids = carIds.reserve(result.accepted.size());
+                }
+                return result;
+            }
 
-            // Backup sales
-            exportToCSV(new JTable(salesModel), "sales_backup.csv");
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    CarImport result = get();
+                    commitCarImport(result);
+                    showImportReport(source, result, start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error importing cars: " + e.getCause().getMessage(), "Import Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
 
-            JOptionPane.showMessageDialog(this, "All data backed up successfully!", "Backup Complete", JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "Error during backup: " + e.getMessage(), "Backup Error", JOptionPane.ERROR_MESSAGE);
+    // Splits the manifest into records on this thread, then parses them on the fork-join
+    // pool and checks VINs in file order so the first of any repeats is the one kept
+    private CarImport readCarManifest(Path source) throws IOException {
+        String fileName = source.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean json = fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson") || fileName.endsWith(".json");
+        List<String> records = new ArrayList<>();
+        int[] lineNumbers = new int[1024];
+        int[] columns = null;
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int first = lineNumber;
+                String record = line;
+                // A quoted CSV field may run over several lines
+                boolean open = !json && oddQuotes(line);
+                while (open && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    record = record + "\n" + line;
+                    open ^= oddQuotes(line);
+                }
+                if (record.isBlank()) continue;
+                if (!json && columns == null) {
+                    columns = importColumns(record);
+                    continue;
+                }
+                if (records.size() == lineNumbers.length) {
+                    lineNumbers = Arrays.copyOf(lineNumbers, lineNumbers.length * 2);
+                }
+                lineNumbers[records.size()] = first;
+                records.add(record);
+            }
+        }
+
+        CarImport result = new CarImport();
+        result.records = records.size();
+        long parseStart = System.nanoTime();
+        ImportedCar[] parsed = new ImportedCar[records.size()];
+        String[] errors = new String[records.size()];
+        ForkJoinPool.commonPool().invoke(new CarImportTask(records, json, columns, parsed, errors, 0, records.size()));
+        result.parseNanos = System.nanoTime() - parseStart;
+
+        Map<String, Integer> firstLine = new HashMap<>();
+        for (int i = 0; i < parsed.length; i++) {
+            ImportedCar car = parsed[i];
+            if (car == null) {
+                result.rejects.add("Line " + lineNumbers[i] + ": " + errors[i]);
+            } else if (vinIndex.find(car.vin) != null) {
+                result.rejects.add("Line " + lineNumbers[i] + ": VIN " + car.vin + " is already in the inventory");
+            } else {
+                Integer earlier = firstLine.putIfAbsent(car.vin, lineNumbers[i]);
+                if (earlier != null) {
+                    result.rejects.add("Line " + lineNumbers[i] + ": VIN " + car.vin + " repeats line " + earlier);
+                } else {
+                    result.accepted.add(car);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean oddQuotes(String line) {
+        boolean odd = false;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == '"') odd = !odd;
+        }
+        return odd;
+    }
+
+    // Maps each of IMPORT_FIELDS to its column in the CSV header, -1 when absent
+    private static int[] importColumns(String header) throws IOException {
+        CsvLineScanner scanner = new CsvLineScanner();
+        scanner.scan(header);
+        int[] columns = new int[IMPORT_FIELDS.length];
+        Arrays.fill(columns, -1);
+        for (int column = 0; column < scanner.fieldCount(); column++) {
+            String name = scanner.text(column).trim().toLowerCase(Locale.ROOT);
+            for (int field = 0; field < IMPORT_FIELDS.length; field++) {
+                if (IMPORT_FIELDS[field].equals(name) && columns[field] < 0) columns[field] = column;
+            }
+        }
+        for (int field = 0; field < IMPORT_FIELDS.length; field++) {
+            if (columns[field] < 0 && field != 3 && field != 5) {
+                throw new IOException("The header has no \"" + IMPORT_FIELDS[field] + "\" column");
+            }
+        }
+        return columns;
+    }
+
+    // Runs on the EDT. VINs are looked up again in case a car was added while the file
+    // was being read, then the batch goes in as one repository change.
+    private void commitCarImport(CarImport result) {
+        for (Iterator<ImportedCar> it = result.accepted.iterator(); it.hasNext(); ) {
+            ImportedCar car = it.next();
+            if (vinIndex.find(car.vin) != null) {
+                result.rejects.add("VIN " + car.vin + " was added to the inventory during the import");
+                it.remove();
+            }
+        }
+        if (result.accepted.isEmpty()) return;
+        List<Car> batch = new ArrayList<>(result.accepted.size());
+        for (ImportedCar car : result.accepted) {
+            batch.add(createCar(result.ids.next(), car.make, car.model, car.year, car.color, car.price,
+                    car.status, car.mileage, car.vin));
+        }
+        cars.addAll(batch);
+    }
+
+    private void showImportReport(Path source, CarImport result, long start) {
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        double parseSeconds = Math.max(1, result.parseNanos) / 1e9;
+        String summary = String.format("Imported %,d of %,d records from %s in %.1f s.%nParsed and validated %,.0f rows/s; %,d rejected.",
+                result.accepted.size(), result.records, source.getFileName(), seconds,
+                result.records / parseSeconds, result.rejects.size());
+        if (result.rejects.isEmpty()) {
+            JOptionPane.showMessageDialog(this, summary, "Import Complete", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        StringBuilder text = new StringBuilder(summary).append("\n\n");
+        int shown = Math.min(result.rejects.size(), 1000);
+        for (int i = 0; i < shown; i++) text.append(result.rejects.get(i)).append('\n');
+        if (shown < result.rejects.size()) {
+            text.append(String.format("... and %,d more%n", result.rejects.size() - shown));
+        }
+        JTextArea rejectArea = new JTextArea(text.toString(), 20, 70);
+        rejectArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+        rejectArea.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(rejectArea), "Import Complete", JOptionPane.WARNING_MESSAGE);
+    }
+
+    // Manifest column names, in the order CarImportTask hands values to validateImportedCar
+    static final String[] IMPORT_FIELDS = {"make", "model", "year", "color", "price", "status", "mileage", "vin"};
+    // Records per fork-join leaf
+    static final int IMPORT_CHUNK = 1024;
+
+    // Parses and validates records[from, to), splitting in half until a range is small
+    // enough. Results land in parsed or errors at the record's index.
+    class CarImportTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> records;
+        private final boolean json;
+        private final int[] columns;
+        private final ImportedCar[] parsed;
+        private final String[] errors;
+        private final int from;
+        private final int to;
+
+        CarImportTask(List<String> records, boolean json, int[] columns, ImportedCar[] parsed, String[] errors, int from, int to) {
+            this.records = records;
+            this.json = json;
+            this.columns = columns;
+            this.parsed = parsed;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > IMPORT_CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CarImportTask(records, json, columns, parsed, errors, from, middle),
+                        new CarImportTask(records, json, columns, parsed, errors, middle, to));
+                return;
+            }
+            NumberFormat money = (NumberFormat) currencyFormat.clone();
+            CsvLineScanner scanner = new CsvLineScanner();
+            String[] values = new String[IMPORT_FIELDS.length];
+            for (int i = from; i < to; i++) {
+                try {
+                    if (json) {
+                        JsonLineParser.fields(records.get(i), IMPORT_FIELDS, values);
+                    } else {
+                        if (!scanner.scan(records.get(i))) throw new IllegalArgumentException("unterminated quoted field");
+                        for (int field = 0; field < values.length; field++) {
+                            int column = columns[field];
+                            values[field] = column >= 0 && column < scanner.fieldCount() ? scanner.text(column) : null;
+                        }
+                    }
+                    parsed[i] = validateImportedCar(values, money);
+                } catch (IllegalArgumentException e) {
+                    errors[i] = e.getMessage();
+                }
+            }
+        }
+    }
+
+    private static ImportedCar validateImportedCar(String[] values, NumberFormat money) {
+        String make = requiredField(values[0], "make");
+        String model = requiredField(values[1], "model");
+        int year = intField(values[2], "year");
+        int latestYear = LocalDate.now().getYear() + 1;
+        if (year < 1886 || year > latestYear) {
+            throw new IllegalArgumentException("year " + year + " is not between 1886 and " + latestYear);
+        }
+        String color = values[3] != null ? values[3].trim() : "";
+        String priceText = requiredField(values[4], "price");
+        double price;
+        try {
+            price = parseMoney(priceText, money);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("price is not a number: " + priceText);
+        }
+        if (!(price > 0) || Double.isInfinite(price)) {
+            throw new IllegalArgumentException("price must be more than zero: " + priceText);
+        }
+        CarStatus status = CarStatus.AVAILABLE;
+        if (values[5] != null && !values[5].isBlank()) {
+            String label = values[5].trim();
+            status = CarStatus.fromLabel(label.replace('_', ' '));
+            if (status == null) throw new IllegalArgumentException("unknown status " + label);
+        }
+        int mileage = intField(values[6], "mileage");
+        if (mileage < 0) {
+            throw new IllegalArgumentException("mileage can't be negative: " + mileage);
+        }
+        String vin = requiredField(values[7], "vin").toUpperCase(Locale.ROOT);
+        return new ImportedCar(make, model, year, color, price, status, mileage, vin);
+    }
+
+    private static String requiredField(String value, String name) {
+        if (value == null || value.isBlank()) throw new IllegalArgumentException("no " + name);
+        return value.trim();
+    }
+
+    private static int intField(String value, String name) {
+        String text = requiredField(value, name);
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a whole number: " + text);
+        }
+    }
+
+    // Money for exports: plain digits with two decimals, no currency symbol or grouping
+    private static String plainAmount(double amount) {
+        return String.format(Locale.ROOT, "%.2f", amount);
+    }
+
+    private void backupData() {
+        // Copy the entities on the EDT so edits made while the file is written can't tear
+        // a record; the encoding and I/O happen in the background
+        DataSnapshot snapshot = DataSnapshot.capture(this);
+        Path file = Path.of(BACKUP_FILE);
+        long start = System.nanoTime();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<Long, Void>() {
+            @Override
+            protected Long doInBackground() throws IOException {
+                new BinaryBackupWriter().write(file, snapshot);
+                return Files.size(file);
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    long bytes = get();
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    JOptionPane.showMessageDialog(CarRetailSystem.this,
+                            String.format("Backed up %d cars, %d customers, %d employees and %d sales to %s (%,d bytes) in %d ms.",
+                                    snapshot.cars.size(), snapshot.customers.size(), snapshot.employees.size(),
+                                    snapshot.sales.size(), BACKUP_FILE, bytes, millis),
+                            "Backup Complete", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error during backup: " + e.getCause().getMessage(), "Backup Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    // Writes all four entity types to one columnar file for analytics tools. The tables
+    // are captured on the EDT like a backup; columns are typed and money is in cents so
+    // nothing has to be parsed back out of display strings. Passwords are left out.
+    private void exportAnalytics() {
+        JFileChooser chooser = new JFileChooser(new File("."));
+        chooser.setDialogTitle("Analytics Export");
+        chooser.setSelectedFile(new File("carretail_analytics.col"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path target = chooser.getSelectedFile().toPath();
+
+        DataSnapshot snapshot = DataSnapshot.capture(this);
+        List<ExportTable<?>> tables = List.of(
+                new ExportTable<>("sales", snapshot.sales)
+                        .intColumn("id", Sale::getId)
+                        .intColumn("epoch_day", sale -> sale.getDate() != null ? toEpochDay(sale.getDate()) : Integer.MIN_VALUE)
+                        .intColumn("customer_id", Sale::getCustomerId)
+                        .intColumn("car_id", Sale::getCarId)
+                        .intColumn("employee_id", Sale::getEmployeeId)
+                        .longColumn("price_cents", sale -> Math.round(sale.getPrice() * 100))
+                        .stringColumn("payment_method", Sale::getPaymentMethod),
+                new ExportTable<>("cars", snapshot.cars)
+                        .intColumn("id", Car::getId)
+                        .stringColumn("make", Car::getMake)
+                        .stringColumn("model", Car::getModel)
+                        .intColumn("year", Car::getYear)
+                        .stringColumn("color", Car::getColor)
+                        .longColumn("price_cents", car -> Math.round(car.getPrice() * 100))
+                        .stringColumn("status", car -> car.getStatus().name())
+                        .intColumn("mileage", Car::getMileage)
+                        .stringColumn("vin", Car::getVin),
+                new ExportTable<>("customers", snapshot.customers)
+                        .intColumn("id", Customer::getId)
+                        .stringColumn("name", Customer::getName)
+                        .stringColumn("phone", Customer::getPhone)
+                        .stringColumn("email", Customer::getEmail)
+                        .stringColumn("address", Customer::getAddress)
+                        .stringColumn("driver_license", Customer::getDriverLicense),
+                new ExportTable<>("employees", snapshot.employees)
+                        .intColumn("id", Employee::getId)
+                        .stringColumn("name", Employee::getName)
+                        .stringColumn("position", Employee::getPosition)
+                        .stringColumn("phone", Employee::getPhone)
+                        .stringColumn("email", Employee::getEmail)
+                        .stringColumn("hire_date", Employee::getHireDate)
+                        .longColumn("salary_cents", employee -> Math.round(employee.getSalary() * 100))
+                        .stringColumn("username", Employee::getUsername));
+
+        int rowGroupRows = Integer.getInteger("carretail.export.rowGroupRows", 65536);
+        long start = System.nanoTime();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<List<ExportedTable>, Void>() {
+            @Override
+            protected List<ExportedTable> doInBackground() throws IOException {
+                return new ColumnarExportWriter(rowGroupRows).write(target, tables);
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    List<ExportedTable> written = get();
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    StringBuilder message = new StringBuilder("Exported to " + target.getFileName() + ":\n");
+                    for (ExportedTable table : written) {
+                        message.append(String.format("  %s: %,d rows in %d row group(s)%n", table.name, table.rows, table.rowGroups));
+                    }
+                    message.append(String.format("%,d bytes in %d ms.", Files.size(target), millis));
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, message.toString(), "Export Complete", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | IOException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error during export: " + cause.getMessage(), "Export Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void restoreData() {
+        Path binaryBackup = Path.of(BACKUP_FILE);
+        if (Files.isRegularFile(binaryBackup)) {
+            restoreBinaryBackup(binaryBackup);
+            return;
+        }
+
+        // Older installs only have the CSV backups
+        File[] files = {
+                new File("cars_backup.csv"), new File("customers_backup.csv"),
+                new File("employees_backup.csv"), new File("sales_backup.csv")
+        };
+        for (File file : files) {
+            if (!file.isFile()) {
+                JOptionPane.showMessageDialog(this, "Backup file not found: " + file.getName(), "Restore Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+
+        int confirm = JOptionPane.showConfirmDialog(
+                this,
+                "Replace all current data with the backup?",
+                "Confirm Restore",
+                JOptionPane.YES_NO_OPTION
+        );
+        if (confirm != JOptionPane.YES_OPTION) return;
+
+        // Files are read and parsed off the EDT; only the final swap happens on it
+        long start = System.nanoTime();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<BackupContents, Void>() {
+            @Override
+            protected BackupContents doInBackground() throws Exception {
+                return readBackupFiles(files);
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    applyRestore(get(), start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    while (cause instanceof ExecutionException && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error during restore: " + cause.getMessage(), "Restore Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void restoreBinaryBackup(Path file) {
+        int confirm = JOptionPane.showConfirmDialog(
+                this,
+                "Replace all current data with the backup in " + file.getFileName() + "?",
+                "Confirm Restore",
+                JOptionPane.YES_NO_OPTION
+        );
+        if (confirm != JOptionPane.YES_OPTION) return;
+
+        long start = System.nanoTime();
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<DataSnapshot, Void>() {
+            @Override
+            protected DataSnapshot doInBackground() throws IOException {
+                return new BinaryBackupReader().read(file);
+            }
+
+            @Override
+            protected void done() {
+                setCursor(Cursor.getDefaultCursor());
+                try {
+                    DataSnapshot snapshot = get();
+                    replaceAllData(snapshot);
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    JOptionPane.showMessageDialog(CarRetailSystem.this,
+                            String.format("Restored %d cars, %d customers, %d employees and %d sales in %d ms.",
+                                    cars.size(), customers.size(), employees.size(), sales.size(), millis),
+                            "Restore Complete", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | IllegalArgumentException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(CarRetailSystem.this, "Error during restore: " + cause.getMessage(), "Restore Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void replaceAllData(DataSnapshot snapshot) {
+        cars.replaceAll(snapshot.cars);
+        customers.replaceAll(snapshot.customers);
+        employees.replaceAll(snapshot.employees);
+        sales.replaceAll(snapshot.sales);
+    }
+
+    // Reads the four backup files concurrently. Sales only carry names, so they are
+    // parsed here and resolved to ids once the other three files are in.
+    private BackupContents readBackupFiles(File[] files) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(files.length);
+        try {
+            Future<BackupTable<Car>> carRows = pool.submit(() -> {
+                NumberFormat money = (NumberFormat) currencyFormat.clone();
+                return readBackupFile(files[0], 9, Car::getId, row -> parseCarRow(row, money));
+            });
+            Future<BackupTable<Customer>> customerRows = pool.submit(() ->
+                    readBackupFile(files[1], 7, Customer::getId, this::parseCustomerRow));
+            Future<BackupTable<Employee>> employeeRows = pool.submit(() -> {
+                NumberFormat money = (NumberFormat) currencyFormat.clone();
+                return readBackupFile(files[2], 8, Employee::getId, row -> parseEmployeeRow(row, money));
+            });
+            Future<BackupTable<BackupSale>> saleRows = pool.submit(() -> {
+                NumberFormat money = (NumberFormat) currencyFormat.clone();
+                return readBackupFile(files[3], 7, sale -> sale.id, row -> parseSaleRow(row, money));
+            });
+            return new BackupContents(carRows.get(), customerRows.get(), employeeRows.get(), saleRows.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Streams one backup file, skipping the header. Rows that are malformed or repeat an
+    // id are counted as rejected rather than aborting the whole restore.
+    private <T> BackupTable<T> readBackupFile(File file, int minFields, ToIntFunction<T> idOf,
+                                              Function<CsvLineScanner, T> parser) throws IOException {
+        BackupTable<T> table = new BackupTable<>();
+        IntIntHashMap seenIds = new IntIntHashMap();
+        CsvLineScanner row = new CsvLineScanner();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+            if (reader.readLine() == null) return table;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String record = line;
+                // A quoted field may run over several lines
+                while (!row.scan(record) && (line = reader.readLine()) != null) {
+                    record = record + "\n" + line;
+                }
+                if (record.isEmpty()) continue;
+                if (!row.isComplete() || row.fieldCount() < minFields) {
+                    table.rejected++;
+                    continue;
+                }
+                T item;
+                try {
+                    item = parser.apply(row);
+                } catch (IllegalArgumentException e) {
+                    table.rejected++;
+                    continue;
+                }
+                int id = idOf.applyAsInt(item);
+                if (seenIds.containsKey(id)) {
+                    table.rejected++;
+                    continue;
+                }
+                seenIds.put(id, 0);
+                table.rows.add(item);
+            }
+        }
+        return table;
+    }
+
+    // The backup writer doesn't quote, so a formatted price or an address can spill over
+    // several fields. The fixed columns are taken from both ends of the row and the one
+    // free-text column is whatever lies between them.
+    private Car parseCarRow(CsvLineScanner row, NumberFormat money) {
+        int last = row.fieldCount() - 1;
+        CarStatus status = CarStatus.fromLabel(row.text(last - 2));
+        if (status == null) {
+            throw new IllegalArgumentException("Unknown status " + row.text(last - 2));
+        }
+        return createCar(row.intValue(0), row.text(1), row.text(2), row.intValue(3), row.text(4),
+                parseMoney(row.span(5, last - 3), money), status, row.intValue(last - 1), row.text(last));
+    }
+
+    private Customer parseCustomerRow(CsvLineScanner row) {
+        // The last two columns (purchase count and date) are derived from sales
+        int last = row.fieldCount() - 1;
+        return new Customer(row.intValue(0), row.text(1), row.text(2), row.text(3),
+                row.span(4, last - 2), "");
+    }
+
+    private Employee parseEmployeeRow(CsvLineScanner row, NumberFormat money) {
+        // The last column (total sales) is derived; credentials aren't in the file
+        int last = row.fieldCount() - 1;
+        return new Employee(row.intValue(0), row.text(1), row.text(2), row.text(3), row.text(4), row.text(5),
+                parseMoney(row.span(6, last - 1), money), null, null);
+    }
+
+    private BackupSale parseSaleRow(CsvLineScanner row, NumberFormat money) {
+        int last = row.fieldCount() - 1;
+        return new BackupSale(row.intValue(0), row.text(1), row.text(2), row.text(3),
+                parseMoney(row.span(4, last - 2), money), row.text(last - 1), row.text(last));
+    }
+
+    // Money columns are written with currencyFormat; a plain number is accepted too
+    private static double parseMoney(String text, NumberFormat money) {
+        ParsePosition position = new ParsePosition(0);
+        Number value = money.parse(text, position);
+        if (value != null && position.getIndex() == text.length()) {
+            return value.doubleValue();
+        }
+        return Double.parseDouble(text);
+    }
+
+    private void applyRestore(BackupContents backup, long start) {
+        // Driver licenses aren't in the file either; keep them for customers still there
+        for (Customer customer : backup.customers.rows) {
+            Customer existing = customers.findById(customer.getId());
+            if (existing != null) customer.setDriverLicense(existing.getDriverLicense());
+        }
+
+        // Keep the credentials of employees that are still there; anyone new gets a
+        // username from their first name and must have a password set before logging in
+        for (Employee employee : backup.employees.rows) {
+            Employee existing = employees.findById(employee.getId());
+            if (existing != null) {
+                employee.setUsername(existing.getUsername());
+                employee.setPassword(existing.getPassword());
+            } else {
+                String firstName = employee.getName().trim().split("\\s+")[0];
+                employee.setUsername(firstName.toLowerCase());
+                employee.setPassword("");
+            }
+        }
+
+        // Sales name their customer, car ("Make Model") and employee; unmatched names
+        // become id 0 and show as "Unknown", exactly as they did when backed up
+        Map<String, Integer> customerIds = new HashMap<>();
+        for (Customer customer : backup.customers.rows) customerIds.putIfAbsent(customer.getName(), customer.getId());
+        Map<String, Integer> employeeIds = new HashMap<>();
+        for (Employee employee : backup.employees.rows) employeeIds.putIfAbsent(employee.getName(), employee.getId());
+        // Several cars can share a make and model, so each sale takes the next sold one
+        Map<String, ArrayDeque<Integer>> soldCarIds = new HashMap<>();
+        Map<String, Integer> anyCarIds = new HashMap<>();
+        for (Car car : backup.cars.rows) {
+            String details = car.getMake() + " " + car.getModel();
+            anyCarIds.putIfAbsent(details, car.getId());
+            if (car.getStatus() == CarStatus.SOLD) {
+                soldCarIds.computeIfAbsent(details, d -> new ArrayDeque<>()).add(car.getId());
+            }
+        }
+
+        List<Sale> restoredSales = new ArrayList<>(backup.sales.rows.size());
+        int unresolved = 0;
+        for (BackupSale row : backup.sales.rows) {
+            ArrayDeque<Integer> sold = soldCarIds.get(row.car);
+            Integer carId = sold != null && !sold.isEmpty() ? sold.poll() : anyCarIds.get(row.car);
+            Integer customerId = customerIds.get(row.customer);
+            Integer employeeId = employeeIds.get(row.employee);
+            if (carId == null || customerId == null || employeeId == null) unresolved++;
+            restoredSales.add(new Sale(row.id, row.date,
+                    customerId != null ? customerId : 0,
+                    carId != null ? carId : 0,
+                    row.price,
+                    employeeId != null ? employeeId : 0,
+                    row.paymentMethod));
+        }
+
+        replaceAllData(new DataSnapshot(backup.cars.rows, backup.customers.rows, backup.employees.rows, restoredSales));
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        int rejected = backup.cars.rejected + backup.customers.rejected + backup.employees.rejected + backup.sales.rejected;
+        String message = String.format("Restored %d cars, %d customers, %d employees and %d sales in %d ms.",
+                cars.size(), customers.size(), employees.size(), sales.size(), millis);
+        if (rejected > 0) message += "\nSkipped " + rejected + " malformed or duplicate rows.";
+        if (unresolved > 0) message += "\n" + unresolved + " sales refer to a customer, car or employee that isn't in the backup.";
+        JOptionPane.showMessageDialog(this, message, "Restore Complete", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void generateReport(String fromDate, String toDate) {
+        int fromDay, toDay;
+        try {
+            fromDay = epochDayBound(fromDate.trim(), false);
+            toDay = epochDayBound(toDate.trim(), true);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Please enter dates as yyyy-MM-dd, yyyy-MM or yyyy", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        SalesReport report = salesLedger.report(fromDay, toDay);
+        StringBuilder text = new StringBuilder();
+        text.append("Sales Report\n");
+        text.append("Period: ").append(fromDate.trim().isEmpty() ? "beginning" : fromDate.trim())
+                .append(" to ").append(toDate.trim().isEmpty() ? "today" : toDate.trim()).append("\n\n");
+        text.append(String.format("%-24s %,12d%n", "Sales", report.count));
+        text.append(String.format("%-24s %15s%n", "Revenue", currencyFormat.format(report.cents / 100.0)));
+        text.append(String.format("%-24s %15s%n", "Average sale",
+                currencyFormat.format(report.count == 0 ? 0 : report.cents / 100.0 / report.count)));
+
+        text.append("\nBy payment method\n");
+        for (Map.Entry<String, long[]> entry : report.paymentMethods.entrySet()) {
+            text.append(String.format("  %-22s %,8d %15s%n", entry.getKey(), entry.getValue()[0],
+                    currencyFormat.format(entry.getValue()[1] / 100.0)));
+        }
+
+        text.append("\nBy salesperson\n");
+        List<Integer> ranking = new ArrayList<>();
+        report.byEmployee.forEachKey(ranking::add);
+        ranking.sort((a, b) -> Long.compare(report.byEmployee.get(b)[1], report.byEmployee.get(a)[1]));
+        for (int employeeId : ranking) {
+            long[] totals = report.byEmployee.get(employeeId);
+            text.append(String.format("  %-22s %,8d %15s%n", employeeName(employeeId), totals[0],
+                    currencyFormat.format(totals[1] / 100.0)));
+        }
+
+        JTextArea reportArea = new JTextArea(text.toString(), 20, 60);
+        reportArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+        reportArea.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(reportArea), "Sales Report", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void printReport() {
+        JOptionPane.showMessageDialog(this, "Print functionality would print the current report here", "Print Report", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void savePreferences(String theme, String currency) {
+        JOptionPane.showMessageDialog(this, "Preferences saved:\nTheme: " + theme + "\nCurrency: " + currency, "Preferences Saved", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    // Repository layer
+    // Open-addressing hash map keyed by primitive int ids, so lookups never box the key.
+    // Integer.MIN_VALUE marks a free slot and can't be used as a key.
+    class IntHashMap<V> {
+        private static final int FREE = Integer.MIN_VALUE;
+
+        private int[] keys;
+        private Object[] values;
+        private int size;
+
+        public IntHashMap() {
+            this(16);
+        }
+
+        public IntHashMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+            keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            values = new Object[capacity];
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return (V) values[i];
+                if (keys[i] == FREE) return null;
+            }
+        }
+
+        public boolean containsKey(int key) {
+            return key != FREE && get(key) != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V put(int key, V value) {
+            if (key == FREE) throw new IllegalArgumentException("Reserved key " + key);
+            if (value == null) throw new IllegalArgumentException("Null value for key " + key);
+            if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != FREE) {
+                if (keys[i] == key) {
+                    V old = (V) values[i];
+                    values[i] = value;
+                    return old;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V remove(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == FREE) return null;
+                i = (i + 1) & mask;
+            }
+            V old = (V) values[i];
+            // Backward-shift deletion keeps probe chains intact without tombstones
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+                int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = FREE;
+            values[gap] = null;
+            size--;
+            return old;
+        }
+
+        public void forEachKey(IntConsumer action) {
+            for (int key : keys) {
+                if (key != FREE) action.accept(key);
+            }
+        }
+
+        public int size() { return size; }
+
+        public void clear() {
+            Arrays.fill(keys, FREE);
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == FREE) continue;
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != FREE) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    // Same layout as IntHashMap with primitive int values, used for id -> row position
+    class IntIntHashMap {
+        private static final int FREE = Integer.MIN_VALUE;
+
+        private int[] keys;
+        private int[] values;
+        private int size;
+
+        public IntIntHashMap() {
+            this(16);
+        }
+
+        public IntIntHashMap(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+            keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            values = new int[capacity];
+        }
+
+        public int get(int key, int defaultValue) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+                if (keys[i] == FREE) return defaultValue;
+            }
+        }
+
+        public boolean containsKey(int key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) return key != FREE;
+                if (keys[i] == FREE) return false;
+            }
+        }
+
+        public void forEachKey(IntConsumer action) {
+            for (int key : keys) {
+                if (key != FREE) action.accept(key);
+            }
+        }
+
+        public void put(int key, int value) {
+            if (key == FREE) throw new IllegalArgumentException("Reserved key " + key);
+            if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != FREE) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        public boolean remove(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (keys[i] != key) {
+                if (keys[i] == FREE) return false;
+                i = (i + 1) & mask;
+            }
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+                int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = FREE;
+            size--;
+            return true;
+        }
+
+        public int size() { return size; }
+
+        public void clear() {
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            values = new int[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == FREE) continue;
+                int i = mix(oldKeys[j]) & mask;
+                while (keys[i] != FREE) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Per-entity change notifications emitted by a Repository
+    interface RepositoryListener<T> {
+        void inserted(T item);
+        void updated(T item);
+        void deleted(T item);
+
+        // A batch was added as one change (a bulk import). The default replays it as
+        // individual inserts.
+        default void insertedAll(List<T> items) {
+            for (T item : items) inserted(item);
+        }
+
+        // The whole contents were replaced at once. Listeners that can rebuild in bulk
+        // override this; the default replays it as individual deletes and inserts.
+        default void reloaded(Iterable<T> items, List<T> previous) {
+            for (T item : previous) deleted(item);
+            for (T item : items) inserted(item);
+        }
+    }
+
+    // In-memory entity list with a primary-key index. Rows keep insertion order;
+    // the position map lets callers go from an id to its row without scanning.
+    // Safe to use from any thread: changes and their listener callbacks run under the
+    // write lock, lookups under the read lock, and iteration walks an immutable snapshot
+    // copied at most once per change, so readers see a consistent list and never hold
+    // the lock while they work through it. Entities are edited in place, but only inside
+    // update(item, edit), which holds the write lock; a thread other than the EDT that
+    // reads an entity's fields does it inside read(), or works on a copy taken there, so
+    // it never sees half an edit.
+    class Repository<T> implements Iterable<T> {
+        private final ToIntFunction<T> idOf;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private ArrayList<T> items = new ArrayList<>();
+        private IntHashMap<T> byId = new IntHashMap<>();
+        private IntIntHashMap positions = new IntIntHashMap();
+        private final List<RepositoryListener<T>> listeners = new CopyOnWriteArrayList<>();
+        private final List<Consumer<List<T>>> insertChecks = new CopyOnWriteArrayList<>();
+        private final List<BiConsumer<T, Consumer<? super T>>> updateChecks = new CopyOnWriteArrayList<>();
+        // null after a change until the next reader asks for it
+        private volatile List<T> snapshot = Collections.emptyList();
+        // Bumped by every change, so caches can tell whether they are stale
+        private volatile long version;
+
+        public Repository(ToIntFunction<T> idOf) {
+            this.idOf = idOf;
+        }
+
+        public void addListener(RepositoryListener<T> listener) {
+            listeners.add(listener);
+        }
+
+        // Runs under the write lock before add and addAll with the items about to go in;
+        // a check that throws IllegalArgumentException stops them all (unique keys)
+        public void addInsertCheck(Consumer<List<T>> check) {
+            insertChecks.add(check);
+        }
+
+        // Runs under the write lock inside update(item, edit), before the entity changes:
+        // the edit is tried on copy.apply(item) and check gets that copy, so a check that
+        // throws IllegalArgumentException leaves the entity as it was (unique keys)
+        public void addUpdateCheck(UnaryOperator<T> copy, Consumer<T> check) {
+            updateChecks.add((item, edit) -> {
+                T proposed = copy.apply(item);
+                edit.accept(proposed);
+                check.accept(proposed);
+            });
+        }
+
+        public void add(T item) {
+            lock.writeLock().lock();
+            try {
+                int id = idOf.applyAsInt(item);
+                if (byId.containsKey(id)) {
+                    throw new IllegalArgumentException("Duplicate id " + id);
+                }
+                for (Consumer<List<T>> check : insertChecks) check.accept(List.of(item));
+                byId.put(id, item);
+                positions.put(id, items.size());
+                items.add(item);
+                snapshot = null;
+                version++;
+                for (RepositoryListener<T> listener : listeners) listener.inserted(item);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Adds a batch as one change, so listeners get a single insertedAll event rather
+        // than one per item. Nothing is added if any id is taken or repeated, or an insert
+        // check rejects the batch.
+        public void addAll(Collection<T> batch) {
+            List<T> added = List.copyOf(batch);
+            lock.writeLock().lock();
+            try {
+                IntIntHashMap batchIds = new IntIntHashMap(added.size());
+                for (T item : added) {
+                    int id = idOf.applyAsInt(item);
+                    if (byId.containsKey(id) || batchIds.containsKey(id)) {
+                        throw new IllegalArgumentException("Duplicate id " + id);
+                    }
+                    batchIds.put(id, 0);
+                }
+                for (Consumer<List<T>> check : insertChecks) check.accept(added);
+                for (T item : added) {
+                    int id = idOf.applyAsInt(item);
+                    byId.put(id, item);
+                    positions.put(id, items.size());
+                    items.add(item);
+                }
+                snapshot = null;
+                version++;
+                for (RepositoryListener<T> listener : listeners) listener.insertedAll(added);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Applies edit to an entity and publishes the change, all under the write lock
+        public void update(T item, Consumer<? super T> edit) {
+            lock.writeLock().lock();
+            try {
+                if (byId.get(idOf.applyAsInt(item)) != item) {
+                    throw new IllegalArgumentException("Not in repository: id " + idOf.applyAsInt(item));
+                }
+                for (BiConsumer<T, Consumer<? super T>> check : updateChecks) check.accept(item, edit);
+                edit.accept(item);
+                version++;
+                for (RepositoryListener<T> listener : listeners) listener.updated(item);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        public T remove(int id) {
+            lock.writeLock().lock();
+            try {
+                int position = positions.get(id, -1);
+                if (position < 0) return null;
+                T item = items.remove(position);
+                byId.remove(id);
+                positions.remove(id);
+                for (int i = position; i < items.size(); i++) {
+                    positions.put(idOf.applyAsInt(items.get(i)), i);
+                }
+                snapshot = null;
+                version++;
+                for (RepositoryListener<T> listener : listeners) listener.deleted(item);
+                return item;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Swaps in a whole new set of entities (e.g. a restored backup) and sends listeners
+        // a single reloaded event instead of one event per row. Nothing changes if the
+        // replacement contains a duplicate id.
+        public void replaceAll(Collection<T> replacement) {
+            ArrayList<T> newItems = new ArrayList<>(replacement);
+            IntHashMap<T> newById = new IntHashMap<>(newItems.size());
+            IntIntHashMap newPositions = new IntIntHashMap(newItems.size());
+            for (int i = 0; i < newItems.size(); i++) {
+                T item = newItems.get(i);
+                int id = idOf.applyAsInt(item);
+                if (newById.containsKey(id)) {
+                    throw new IllegalArgumentException("Duplicate id " + id);
+                }
+                newById.put(id, item);
+                newPositions.put(id, i);
+            }
+            lock.writeLock().lock();
+            try {
+                List<T> previous = items;
+                items = newItems;
+                byId = newById;
+                positions = newPositions;
+                snapshot = null;
+                version++;
+                for (RepositoryListener<T> listener : listeners) listener.reloaded(this, previous);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Runs a query that spans several lookups (e.g. an index scan) with no change
+        // applied in between. Listener callbacks can't run while it does, so it must not
+        // wait on a thread that is writing to this repository.
+        public <R> R read(Supplier<R> query) {
+            lock.readLock().lock();
+            try {
+                return query.get();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Every entity as of now, in repository order; the list never changes
+        public List<T> snapshot() {
+            List<T> current = snapshot;
+            if (current != null) return current;
+            lock.readLock().lock();
+            try {
+                if (snapshot == null) {
+                    snapshot = Collections.unmodifiableList(new ArrayList<>(items));
+                }
+                return snapshot;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public T findById(int id) { return read(() -> byId.get(id)); }
+        public int indexOf(int id) { return read(() -> positions.get(id, -1)); }
+        public boolean contains(int id) { return read(() -> byId.containsKey(id)); }
+        public boolean includes(T item) { return read(() -> byId.get(idOf.applyAsInt(item)) == item); }
+        public T get(int index) { return read(() -> items.get(index)); }
+        public int size() { return read(items::size); }
+        public boolean isEmpty() { return size() == 0; }
+        public long version() { return version; }
+        public Stream<T> stream() { return snapshot().stream(); }
+
+        @Override
+        public Iterator<T> iterator() {
+            return snapshot().iterator();
+        }
+    }
+
+    // Where id sequences record how far they have handed out ids. claim() returns the
+    // first of count consecutive ids, none below floor, that no earlier claim returned.
+    interface IdStore {
+        long claim(String sequence, int count, long floor) throws IOException;
+    }
+
+    static class MemoryIdStore implements IdStore {
+        private final HashMap<String, Long> next = new HashMap<>();
+
+        @Override
+        public synchronized long claim(String sequence, int count, long floor) {
+            long start = Math.max(next.getOrDefault(sequence, 1L), floor);
+            next.put(sequence, start + count);
+            return start;
+        }
+    }
+
+    // High-water marks in a properties file. The file is rewritten (temp file, fsync,
+    // atomic rename) before a block is handed out, so a crash can skip ids but never
+    // reuse them.
+    static class FileIdStore implements IdStore {
+        private final Path file;
+        private final Properties next = new Properties();
+
+        FileIdStore(Path file) throws IOException {
+            this.file = file;
+            if (Files.exists(file)) {
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    next.load(reader);
+                }
+            }
+        }
+
+        @Override
+        public synchronized long claim(String sequence, int count, long floor) throws IOException {
+            long start = floor;
+            String stored = next.getProperty(sequence);
+            if (stored != null) {
+                try {
+                    start = Math.max(start, Long.parseLong(stored.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad id high-water for " + sequence + ": " + stored);
+                }
+            }
+            next.setProperty(sequence, Long.toString(start + count));
+            save();
+            return start;
+        }
+
+        private void save() throws IOException {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            StringWriter text = new StringWriter();
+            next.store(text, "Next unreserved id per entity");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+                while (bytes.hasRemaining()) channel.write(bytes);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    class JdbcIdStore implements IdStore {
+        private final JdbcStore store;
+
+        JdbcIdStore(JdbcStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public long claim(String sequence, int count, long floor) throws IOException {
+            try {
+                return store.claimIds(sequence, count, floor);
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    // A run of reserved ids, consumed with a lock-free increment
+    static class IdBlock {
+        private final AtomicLong cursor;
+        private final long end;
+
+        IdBlock(long first, long end) {
+            cursor = new AtomicLong(first);
+            this.end = end;
+        }
+
+        // 0 once the block is used up
+        int tryNext() {
+            long id = cursor.getAndIncrement();
+            return id < end ? (int) id : 0;
+        }
+
+        public int next() {
+            int id = tryNext();
+            if (id == 0) throw new IllegalStateException("Id block used up");
+            return id;
+        }
+
+        public int remaining() {
+            return (int) Math.max(0, end - cursor.get());
+        }
+    }
+
+    // Thread-safe id allocator for one entity type. next() takes ids from the current
+    // block and only locks to reserve another (carretail.ids.blockSize ids, default 100)
+    // from idStore. Bulk imports reserve() a block of their own up front. The sequence
+    // also watches its repository so ids that arrive from a restore or another source
+    // are never handed out again.
+    class IdSequence<T> implements RepositoryListener<T> {
+        private final String name;
+        private final ToIntFunction<T> idOf;
+        private volatile IdBlock current = new IdBlock(0, 0);
+        // Highest id seen in the repository; guarded by this
+        private long highestSeen;
+
+        public IdSequence(String name, Repository<T> repository, ToIntFunction<T> idOf) {
+            this.name = name;
+            this.idOf = idOf;
+            repository.addListener(this);
+        }
+
+        // Throws IllegalStateException if no more ids can be reserved
+        public int next() {
+            while (true) {
+                IdBlock block = current;
+                int id = block.tryNext();
+                if (id != 0) return id;
+                synchronized (this) {
+                    if (current == block) {
+                        current = claim(Math.max(1, Integer.getInteger("carretail.ids.blockSize", 100)));
+                    }
+                }
+            }
+        }
+
+        public synchronized IdBlock reserve(int count) {
+            return claim(count);
+        }
+
+        private IdBlock claim(int count) {
+            long start;
+            try {
+                start = idStore.claim(name, count, highestSeen + 1);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not reserve " + name + " ids: " + e.getMessage(), e);
+            }
+            if (start + count - 1 > Integer.MAX_VALUE) {
+                throw new IllegalStateException("No " + name + " ids left");
+            }
+            return new IdBlock(start, start + count);
+        }
+
+        // Every id is folded into highestSeen, even one below the cursor of a used-up
+        // block, since the next claim starts above it
+        private synchronized void seen(int id) {
+            highestSeen = Math.max(highestSeen, id);
+            // Someone else used an id we were about to hand out; start a new block
+            IdBlock block = current;
+            if (id >= block.cursor.get() && id < block.end) current = new IdBlock(0, 0);
+        }
+
+        @Override
+        public void inserted(T item) {
+            seen(idOf.applyAsInt(item));
+        }
+
+        @Override
+        public void updated(T item) { }
+
+        @Override
+        public void deleted(T item) { }
+
+        @Override
+        public void reloaded(Iterable<T> items, List<T> previous) {
+            int highest = 0;
+            for (T item : items) highest = Math.max(highest, idOf.applyAsInt(item));
+            seen(highest);
+        }
+    }
+
+    // Table model that reads cells straight from the entities it holds. Rows are just
+    // references; nothing is formatted until the table asks for a visible cell.
+    // Repository events touch only the affected row, honouring the active filter.
+    abstract class EntityTableModel<T> extends AbstractTableModel implements RepositoryListener<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] columns;
+        private final ToIntFunction<T> idOf;
+        private final ArrayList<T> rows = new ArrayList<>();
+        private final IntIntHashMap rowById = new IntIntHashMap();
+        private Predicate<T> filter;
+        // Repository events still waiting to be applied on the EDT
+        private final AtomicInteger queuedEvents = new AtomicInteger();
+
+        public EntityTableModel(String[] columns, ToIntFunction<T> idOf) {
+            this.columns = columns;
+            this.idOf = idOf;
+        }
+
+        protected abstract Object cellValue(T item, int column);
+
+        // The value written to CSV exports, which run off the EDT; override for cells that
+        // are formatted for display (e.g. currency, whose formatter isn't thread-safe)
+        protected Object exportValue(T item, int column) {
+            return cellValue(item, column);
+        }
+
+        @Override
+        public int getRowCount() { return rows.size(); }
+
+        @Override
+        public int getColumnCount() { return columns.length; }
+
+        @Override
+        public String getColumnName(int column) { return columns[column]; }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return cellValue(rows.get(row), column);
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+
+        public T getRow(int row) { return rows.get(row); }
+        public int getId(int row) { return idOf.applyAsInt(rows.get(row)); }
+
+        // A null filter means the rows are the whole repository
+        public void setRows(Iterable<T> items, Predicate<T> filter) {
+            this.filter = filter;
+            rows.clear();
+            rowById.clear();
+            for (T item : items) {
+                rowById.put(idOf.applyAsInt(item), rows.size());
+                rows.add(item);
+            }
+            fireTableDataChanged();
+        }
+
+        public void addRow(T item) {
+            int id = idOf.applyAsInt(item);
+            // A background query may have shown it already
+            if (rowById.containsKey(id)) {
+                rowChanged(id);
+                return;
+            }
+            int row = rows.size();
+            rowById.put(id, row);
+            rows.add(item);
+            fireTableRowsInserted(row, row);
+        }
+
+        // Adds a chunk of rows found by a background query, skipping any already shown
+        public void appendRows(List<T> items) {
+            int first = rows.size();
+            for (T item : items) {
+                int id = idOf.applyAsInt(item);
+                if (rowById.containsKey(id)) continue;
+                rowById.put(id, rows.size());
+                rows.add(item);
+            }
+            if (rows.size() > first) {
+                fireTableRowsInserted(first, rows.size() - 1);
+            }
+        }
+
+        // Repaints the entity's row, if shown; may be called from any thread
+        public void updateRow(int id) {
+            onEdt(() -> rowChanged(id));
+        }
+
+        // Repaints every row; may be called from any thread
+        public void refresh() {
+            onEdt(this::fireTableDataChanged);
+        }
+
+        private void rowChanged(int id) {
+            int row = rowById.get(id, -1);
+            if (row >= 0) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+
+        // Repositories notify on whichever thread made the change. The model only changes
+        // on the EDT; an event arriving there is applied at once unless earlier events are
+        // still queued, so changes are always applied in the order they happened.
+        private void onEdt(Runnable change) {
+            if (SwingUtilities.isEventDispatchThread() && queuedEvents.get() == 0) {
+                change.run();
+                return;
+            }
+            queuedEvents.incrementAndGet();
+            SwingUtilities.invokeLater(() -> {
+                queuedEvents.decrementAndGet();
+                change.run();
+            });
+        }
+
+        public void removeRow(int id) {
+            int row = rowById.get(id, -1);
+            if (row < 0) return;
+            rows.remove(row);
+            rowById.remove(id);
+            for (int i = row; i < rows.size(); i++) {
+                rowById.put(idOf.applyAsInt(rows.get(i)), i);
+            }
+            fireTableRowsDeleted(row, row);
+        }
+
+        private boolean accepts(T item) {
+            return filter == null || filter.test(item);
+        }
+
+        @Override
+        public void inserted(T item) {
+            onEdt(() -> {
+                if (accepts(item)) {
+                    addRow(item);
+                }
+            });
+        }
+
+        @Override
+        public void insertedAll(List<T> items) {
+            onEdt(() -> {
+                List<T> shown = new ArrayList<>(items.size());
+                for (T item : items) {
+                    if (accepts(item)) shown.add(item);
+                }
+                appendRows(shown);
+            });
+        }
+
+        @Override
+        public void updated(T item) {
+            onEdt(() -> {
+                int id = idOf.applyAsInt(item);
+                boolean shown = rowById.get(id, -1) >= 0;
+                if (accepts(item)) {
+                    if (shown) rowChanged(id); else addRow(item);
+                } else if (shown) {
+                    removeRow(id);
+                }
+            });
+        }
+
+        @Override
+        public void deleted(T item) {
+            onEdt(() -> removeRow(idOf.applyAsInt(item)));
+        }
+
+        @Override
+        public void reloaded(Iterable<T> items, List<T> previous) {
+            // Copy now: by the time a queued event runs the repository may have moved on
+            List<T> current = new ArrayList<>();
+            items.forEach(current::add);
+            onEdt(() -> setRows(current, null));
+        }
+    }
+
+    // Runs one table's refreshes and searches on a SwingWorker so the EDT never walks the
+    // data. Only the latest query counts: starting one cancels the previous worker, which
+    // checks between rows, and anything a superseded worker still publishes is dropped.
+    // Matches reach the model in chunks as they are found, so the first rows show while
+    // a big scan is still running. Must be used from the EDT.
+    //
+    // Finished text searches are cached until the data changes. A query seen before is
+    // shown from the cache without scanning, and a query that contains a cached one
+    // (typing more characters) only re-checks that one's matches.
+    class TableQueryRunner<T> {
+        private static final int CHUNK_SIZE = 500;
+        // Rows added to the model per EDT event, so no single event takes more than a frame
+        private static final int ROWS_PER_EVENT = 5000;
+        private static final int CACHED_RESULTS = 32;
+
+        private final EntityTableModel<T> model;
+        private final Repository<T> repository;
+        private final LongSupplier dataVersion;
+        private final LinkedHashMap<String, List<T>> results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<T>> eldest) {
+                return size() > CACHED_RESULTS;
+            }
+        };
+        private long resultsVersion;
+        private SwingWorker<Void, List<T>> running;
+        // Chunks found but not yet in the model
+        private final ArrayDeque<List<T>> backlog = new ArrayDeque<>();
+        private boolean draining;
+
+        public TableQueryRunner(EntityTableModel<T> model, Repository<T> repository) {
+            this(model, repository, repository::version);
+        }
+
+        // dataVersion must change whenever anything the search filters look at changes
+        public TableQueryRunner(EntityTableModel<T> model, Repository<T> repository, LongSupplier dataVersion) {
+            this.model = model;
+            this.repository = repository;
+            this.dataVersion = dataVersion;
+        }
+
+        // Shows every row the supplier returns; filter is what those rows satisfy
+        // (null when they are the whole repository)
+        public void show(Supplier<? extends Iterable<T>> rows, Predicate<T> filter) {
+            start(rows, null, filter, null);
+        }
+
+        // Shows the entities matching filter, a text search for query within scope (the
+        // search type). Whatever filter matches for a query it must also match for any
+        // query containing it, as a substring match does.
+        public void search(String scope, String query, Predicate<T> filter) {
+            long version = dataVersion.getAsLong();
+            if (version != resultsVersion) {
+                results.clear();
+                resultsVersion = version;
+            }
+            String prefix = scope + '\n';
+            List<T> cached = results.get(prefix + query);
+            if (cached != null) {
+                cancelRunning();
+                model.setRows(Collections.emptyList(), filter);
+                for (int i = 0; i < cached.size(); i += CHUNK_SIZE) {
+                    enqueue(new ArrayList<>(cached.subList(i, Math.min(cached.size(), i + CHUNK_SIZE))));
+                }
+                return;
+            }
+            List<T> narrowest = null;
+            for (Map.Entry<String, List<T>> entry : results.entrySet()) {
+                String key = entry.getKey();
+                if (key.startsWith(prefix) && query.contains(key.substring(prefix.length()))
+                        && (narrowest == null || entry.getValue().size() < narrowest.size())) {
+                    narrowest = entry.getValue();
+                }
+            }
+            List<T> candidates = narrowest;
+            start(candidates != null ? () -> candidates : repository::snapshot, filter, filter, matches -> {
+                if (resultsVersion == version) {
+                    results.put(prefix + query, Collections.unmodifiableList(matches));
+                }
+            });
+        }
+
+        private void cancelRunning() {
+            if (running != null) {
+                running.cancel(false);
+                running = null;
+            }
+            backlog.clear();
+        }
+
+        private void enqueue(List<T> chunk) {
+            backlog.add(chunk);
+            if (!draining) {
+                draining = true;
+                drain();
+            }
+        }
+
+        // Moves up to ROWS_PER_EVENT rows into the model, then yields the EDT until the next turn
+        private void drain() {
+            int budget = ROWS_PER_EVENT;
+            while (budget > 0 && !backlog.isEmpty()) {
+                List<T> chunk = backlog.poll();
+                // Skip anything deleted since it was found
+                chunk.removeIf(item -> !repository.includes(item));
+                model.appendRows(chunk);
+                budget -= CHUNK_SIZE;
+            }
+            if (backlog.isEmpty()) {
+                draining = false;
+            } else {
+                SwingUtilities.invokeLater(this::drain);
+            }
+        }
+
+        // onComplete, if given, receives every match once the query finishes uncancelled
+        private void start(Supplier<? extends Iterable<T>> source, Predicate<T> test, Predicate<T> filter,
+                           Consumer<List<T>> onComplete) {
+            cancelRunning();
+            model.setRows(Collections.emptyList(), filter);
+            List<T> matches = new ArrayList<>();
+            SwingWorker<Void, List<T>> worker = new SwingWorker<>() {
+                @Override
+                protected Void doInBackground() {
+                    List<T> chunk = new ArrayList<>(CHUNK_SIZE);
+                    for (T item : source.get()) {
+                        if (isCancelled()) return null;
+                        // Under the read lock, so an edit is seen whole or not at all
+                        if (test != null && !repository.read(() -> test.test(item))) continue;
+                        if (onComplete != null) matches.add(item);
+                        chunk.add(item);
+                        if (chunk.size() == CHUNK_SIZE) {
+                            publish(chunk);
+                            chunk = new ArrayList<>(CHUNK_SIZE);
+                        }
+                    }
+                    if (!chunk.isEmpty()) publish(chunk);
+                    return null;
+                }
+
+                @Override
+                protected void process(List<List<T>> chunks) {
+                    if (running != this) return;
+                    for (List<T> chunk : chunks) {
+                        enqueue(chunk);
+                    }
+                }
+
+                @Override
+                protected void done() {
+                    if (running != this || isCancelled()) return;
+                    try {
+                        get();
+                        if (onComplete != null) onComplete.accept(matches);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        JOptionPane.showMessageDialog(CarRetailSystem.this, "Search failed: " + e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            };
+            running = worker;
+            worker.execute();
+        }
+    }
+
+    // Inverted trigram index over the text the inventory "All" search looks at.
+    // Each posting is the set of car ids containing that trigram in some field, so a
+    // substring query intersects the postings of its own trigrams and then verifies
+    // the (few) candidates instead of lowercasing every field of every car. What was
+    // indexed for each car is kept as an IndexedCar: make, model and color are codes
+    // into the shared carMakes/carModels/carColors dictionaries, whose lowercased names
+    // exist once per distinct value rather than once per car.
+    class CarSearchIndex implements RepositoryListener<Car> {
+        static final int GRAM = 3;
+
+        private final Repository<Car> cars;
+        private final HashMap<String, IntIntHashMap> postings = new HashMap<>();
+        private final IntHashMap<IndexedCar> indexed = new IntHashMap<>();
+
+        public CarSearchIndex(Repository<Car> cars) {
+            this.cars = cars;
+            cars.addListener(this);
+        }
+
+        // The searchable fields of a car as they were when it was indexed
+        private class IndexedCar {
+            final int make;
+            final int model;
+            final int color;
+            final int year;
+            final double price;
+            final CarStatus status;
+            final int mileage;
+            final String vin;
+
+            IndexedCar(Car car) {
+                make = carMakes.code(car.getMake());
+                model = carModels.code(car.getModel());
+                color = carColors.code(car.getColor());
+                year = car.getYear();
+                price = car.getPrice();
+                status = car.getStatus();
+                mileage = car.getMileage();
+                vin = car.getVin();
+            }
+
+            // Searchable text, lowercased, one entry per field
+            String[] fields() {
+                return new String[]{
+                        carMakes.lowercase(make),
+                        carModels.lowercase(model),
+                        String.valueOf(year),
+                        carColors.lowercase(color),
+                        String.valueOf(price),
+                        String.valueOf(status).toLowerCase(),
+                        String.valueOf(mileage),
+                        vin == null ? "" : vin.toLowerCase()
+                };
+            }
+
+            boolean contains(String queryLower) {
+                return carMakes.lowercase(make).contains(queryLower)
+                        || carModels.lowercase(model).contains(queryLower)
+                        || carColors.lowercase(color).contains(queryLower)
+                        || String.valueOf(year).contains(queryLower)
+                        || String.valueOf(price).contains(queryLower)
+                        || String.valueOf(status).toLowerCase().contains(queryLower)
+                        || String.valueOf(mileage).contains(queryLower)
+                        || containsIgnoringCase(vin, queryLower);
+            }
+
+            // The VIN is compared in place rather than lowercased for every check
+            private boolean containsIgnoringCase(String field, String queryLower) {
+                if (field == null) return false;
+                for (int i = 0; i + queryLower.length() <= field.length(); i++) {
+                    if (field.regionMatches(true, i, queryLower, 0, queryLower.length())) return true;
+                }
+                return false;
+            }
+        }
+
+        public boolean matches(Car car, String queryLower) {
+            IndexedCar fields = cars.read(() -> indexed.get(car.getId()));
+            if (fields == null) fields = new IndexedCar(car);
+            return fields.contains(queryLower);
+        }
+
+        // Cars (in repository order) whose fields contain the query; the query must be
+        // lowercased and at least GRAM characters long
+        public List<Car> search(String queryLower) {
+            return cars.read(() -> searchLocked(queryLower));
+        }
+
+        private List<Car> searchLocked(String queryLower) {
+            IntIntHashMap smallest = null;
+            List<IntIntHashMap> required = new ArrayList<>();
+            for (String gram : gramsOf(new String[]{queryLower})) {
+                IntIntHashMap posting = postings.get(gram);
+                if (posting == null) return Collections.emptyList();
+                required.add(posting);
+                if (smallest == null || posting.size() < smallest.size()) smallest = posting;
+            }
+
+            int[] positions = new int[smallest.size()];
+            int[] count = {0};
+            smallest.forEachKey(id -> {
+                for (IntIntHashMap posting : required) {
+                    if (!posting.containsKey(id)) return;
+                }
+                Car car = cars.findById(id);
+                if (car != null && matches(car, queryLower)) {
+                    positions[count[0]++] = cars.indexOf(id);
+                }
+            });
+
+            Arrays.sort(positions, 0, count[0]);
+            List<Car> result = new ArrayList<>(count[0]);
+            for (int i = 0; i < count[0]; i++) {
+                result.add(cars.get(positions[i]));
+            }
+            return result;
+        }
+
+        private Set<String> gramsOf(String[] fields) {
+            Set<String> grams = new HashSet<>();
+            for (String field : fields) {
+                for (int i = 0; i + GRAM <= field.length(); i++) {
+                    grams.add(field.substring(i, i + GRAM));
+                }
+            }
+            return grams;
+        }
+
+        private void index(Car car) {
+            IndexedCar fields = new IndexedCar(car);
+            indexed.put(car.getId(), fields);
+            for (String gram : gramsOf(fields.fields())) {
+                postings.computeIfAbsent(gram, g -> new IntIntHashMap(4)).put(car.getId(), 0);
+            }
+        }
+
+        private void unindex(int carId) {
+            IndexedCar fields = indexed.remove(carId);
+            if (fields == null) return;
+            for (String gram : gramsOf(fields.fields())) {
+                IntIntHashMap posting = postings.get(gram);
+                if (posting != null && posting.remove(carId) && posting.size() == 0) {
+                    postings.remove(gram);
+                }
+            }
+        }
+
+        @Override
+        public void inserted(Car car) {
+            index(car);
+        }
+
+        @Override
+        public void updated(Car car) {
+            unindex(car.getId());
+            index(car);
+        }
+
+        @Override
+        public void deleted(Car car) {
+            unindex(car.getId());
+        }
+
+        @Override
+        public void reloaded(Iterable<Car> items, List<Car> previous) {
+            postings.clear();
+            indexed.clear();
+            for (Car car : items) {
+                index(car);
+            }
+        }
+    }
+
+    // Sorted secondary index of (int key, id) pairs packed into a long[] with the key in
+    // the high 32 bits, so Arrays.sort and binary search work on primitives and a range
+    // query is two binary searches plus a slice. Entities are edited in place, so the
+    // key each id was filed under is remembered; an update or delete finds its old entry
+    // with a binary search on that (key, id) pair rather than scanning for the id.
+    class SortedIntIndex<T> implements RepositoryListener<T> {
+        private final Repository<T> repository;
+        private final ToIntFunction<T> idOf;
+        private final ToIntFunction<T> keyOf;
+        private long[] entries = new long[16];
+        private int size;
+        private final IntIntHashMap keyById = new IntIntHashMap();
+
+        public SortedIntIndex(Repository<T> repository, ToIntFunction<T> idOf, ToIntFunction<T> keyOf) {
+            this.repository = repository;
+            this.idOf = idOf;
+            this.keyOf = keyOf;
+            repository.addListener(this);
+        }
+
+        private long pack(T item) {
+            return ((long) keyOf.applyAsInt(item) << 32) | (idOf.applyAsInt(item) & 0xFFFFFFFFL);
+        }
+
+        private static int idAt(long entry) { return (int) entry; }
+        private static int keyAt(long entry) { return (int) (entry >> 32); }
+
+        // First slot whose entry is >= target
+        private int lowerBound(long target) {
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid] < target) low = mid + 1; else high = mid;
+            }
+            return low;
+        }
+
+        private int fromSlot(int minKey) { return lowerBound((long) minKey << 32); }
+
+        private int toSlot(int maxKey) {
+            return maxKey == Integer.MAX_VALUE ? size : lowerBound((long) (maxKey + 1) << 32);
+        }
+
+        // Queries run under the repository's read lock, which keeps listener callbacks out
+        public int count(int minKey, int maxKey) {
+            return repository.read(() -> Math.max(0, toSlot(maxKey) - fromSlot(minKey)));
+        }
+
+        // Entities with minKey <= key <= maxKey, in key order
+        public List<T> between(int minKey, int maxKey) {
+            return repository.read(() -> {
+                int from = fromSlot(minKey), to = toSlot(maxKey);
+                List<T> result = new ArrayList<>(Math.max(0, to - from));
+                for (int i = from; i < to; i++) {
+                    T item = repository.findById(idAt(entries[i]));
+                    if (item != null) result.add(item);
+                }
+                return result;
+            });
+        }
+
+        // The n entities with the highest keys, highest first
+        public List<T> highest(int n) {
+            return repository.read(() -> {
+                List<T> result = new ArrayList<>(Math.min(n, size));
+                for (int i = size - 1; i >= 0 && result.size() < n; i--) {
+                    T item = repository.findById(idAt(entries[i]));
+                    if (item != null) result.add(item);
+                }
+                return result;
+            });
+        }
+
+        public int minKey() { return repository.read(() -> size == 0 ? 0 : keyAt(entries[0])); }
+        public int maxKey() { return repository.read(() -> size == 0 ? 0 : keyAt(entries[size - 1])); }
+
+        private void insert(T item) {
+            long entry = pack(item);
+            if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+            int slot = lowerBound(entry);
+            System.arraycopy(entries, slot, entries, slot + 1, size - slot);
+            entries[slot] = entry;
+            size++;
+            keyById.put(idAt(entry), keyAt(entry));
+        }
+
+        private void removeId(int id) {
+            if (!keyById.containsKey(id)) return;
+            long entry = ((long) keyById.get(id, 0) << 32) | (id & 0xFFFFFFFFL);
+            keyById.remove(id);
+            int slot = lowerBound(entry);
+            if (slot < size && entries[slot] == entry) {
+                System.arraycopy(entries, slot + 1, entries, slot, size - slot - 1);
+                size--;
+            }
+        }
+
+        @Override
+        public void inserted(T item) {
+            insert(item);
+        }
+
+        // A bulk import: the batch is packed and sorted on its own, then merged with the
+        // existing entries in one pass instead of an arraycopy per item
+        @Override
+        public void insertedAll(List<T> items) {
+            long[] added = new long[items.size()];
+            for (int i = 0; i < added.length; i++) {
+                added[i] = pack(items.get(i));
+                keyById.put(idAt(added[i]), keyAt(added[i]));
+            }
+            Arrays.sort(added);
+            long[] merged = new long[Math.max(entries.length, size + added.length)];
+            int i = 0, j = 0, k = 0;
+            while (i < size && j < added.length) {
+                merged[k++] = entries[i] <= added[j] ? entries[i++] : added[j++];
+            }
+            while (i < size) merged[k++] = entries[i++];
+            while (j < added.length) merged[k++] = added[j++];
+            entries = merged;
+            size = k;
+        }
+
+        @Override
+        public void updated(T item) {
+            int id = idOf.applyAsInt(item);
+            if (keyById.containsKey(id) && keyById.get(id, 0) == keyOf.applyAsInt(item)) return;
+            removeId(id);
+            insert(item);
+        }
+
+        @Override
+        public void deleted(T item) {
+            removeId(idOf.applyAsInt(item));
+        }
+
+        // Pack everything and sort once rather than paying an arraycopy per insert
+        @Override
+        public void reloaded(Iterable<T> items, List<T> previous) {
+            entries = new long[Math.max(16, repository.size())];
+            size = 0;
+            keyById.clear();
+            for (T item : items) {
+                if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+                long entry = pack(item);
+                entries[size++] = entry;
+                keyById.put(idAt(entry), keyAt(entry));
+            }
+            Arrays.sort(entries, 0, size);
+        }
+    }
+
+    // Running sales totals for one customer or one employee
+    class SalesAggregate {
+        private long count;
+        private double revenue;
+        private Sale first;
+        private Sale last;
+
+        void add(Sale sale) {
+            count++;
+            revenue += sale.getPrice();
+            if (first == null || sale.getEpochDay() < first.getEpochDay()) first = sale;
+            if (last == null || sale.getEpochDay() > last.getEpochDay()) last = sale;
+        }
+
+        SalesAggregate copy() {
+            SalesAggregate copy = new SalesAggregate();
+            copy.count = count;
+            copy.revenue = revenue;
+            copy.first = first;
+            copy.last = last;
+            return copy;
+        }
+
+        public long getCount() { return count; }
+        public double getRevenue() { return revenue; }
+        public String getFirstDate() { return first != null ? first.getDate() : null; }
+        public String getLastDate() { return last != null ? last.getDate() : null; }
+    }
+
+    // Live dashboard numbers. Each repository change adjusts a counter in O(1) instead
+    // of the dashboard rescanning the data, and only flags the stat cards as stale; a
+    // Swing timer repaints them at most every carretail.dashboard.refreshMillis (default
+    // 250), so a bulk import or restore costs one repaint rather than one per row. The
+    // timer also notices midnight, when "Sold Today" moves on to the new day.
+    class DashboardMetrics {
+        private final LongAdder totalCars = new LongAdder();
+        private final LongAdder availableCars = new LongAdder();
+        private final LongAdder totalSalesCents = new LongAdder();
+        private final LongAdder customerCount = new LongAdder();
+        private final LongAdder employeeCount = new LongAdder();
+        // Car status ordinals by id, since status changes in place; guarded by the cars lock
+        private final IntIntHashMap statusById = new IntIntHashMap();
+        // Sales per epoch day; guarded by the sales lock
+        private final IntIntHashMap salesByDay = new IntIntHashMap();
+        private final AtomicBoolean stale = new AtomicBoolean();
+        private final Map<JLabel, Supplier<String>> labels = new LinkedHashMap<>();
+        private Timer timer;
+        private int shownDay;
+
+        public DashboardMetrics() {
+            cars.addListener(new RepositoryListener<>() {
+                @Override
+                public void inserted(Car car) {
+                    add(car);
+                    changed();
+                }
+
+                private void add(Car car) {
+                    totalCars.increment();
+                    statusById.put(car.getId(), car.getStatus().ordinal());
+                    if (car.getStatus() == CarStatus.AVAILABLE) availableCars.increment();
+                }
+
+                @Override
+                public void updated(Car car) {
+                    int before = statusById.get(car.getId(), -1);
+                    int after = car.getStatus().ordinal();
+                    if (before == after) return;
+                    statusById.put(car.getId(), after);
+                    if (before == CarStatus.AVAILABLE.ordinal()) availableCars.decrement();
+                    if (after == CarStatus.AVAILABLE.ordinal()) availableCars.increment();
+                    changed();
+                }
+
+                @Override
+                public void deleted(Car car) {
+                    totalCars.decrement();
+                    if (statusById.get(car.getId(), -1) == CarStatus.AVAILABLE.ordinal()) availableCars.decrement();
+                    statusById.remove(car.getId());
+                    changed();
+                }
+
+                @Override
+                public void reloaded(Iterable<Car> items, List<Car> previous) {
+                    totalCars.reset();
+                    availableCars.reset();
+                    statusById.clear();
+                    for (Car car : items) add(car);
+                    changed();
+                }
+            });
+
+            sales.addListener(new RepositoryListener<>() {
+                @Override
+                public void inserted(Sale sale) {
+                    add(sale);
+                    changed();
+                }
+
+                private void add(Sale sale) {
+                    totalSalesCents.add(Math.round(sale.getPrice() * 100));
+                    int day = sale.getEpochDay();
+                    // Undated sales (Integer.MIN_VALUE, which the map can't hold) are never today's
+                    if (day != Integer.MIN_VALUE) salesByDay.put(day, salesByDay.get(day, 0) + 1);
+                }
+
+                // Sales aren't edited once recorded
+                @Override
+                public void updated(Sale sale) { }
+
+                @Override
+                public void deleted(Sale sale) {
+                    totalSalesCents.add(-Math.round(sale.getPrice() * 100));
+                    int day = sale.getEpochDay();
+                    if (day != Integer.MIN_VALUE) {
+                        int left = salesByDay.get(day, 0) - 1;
+                        if (left > 0) salesByDay.put(day, left); else salesByDay.remove(day);
+                    }
+                    changed();
+                }
+
+                @Override
+                public void reloaded(Iterable<Sale> items, List<Sale> previous) {
+                    totalSalesCents.reset();
+                    salesByDay.clear();
+                    for (Sale sale : items) add(sale);
+                    // Also when the restored set is empty, so the cards drop the old figures
+                    changed();
+                }
+            });
+
+            customers.addListener(counter(customerCount));
+            employees.addListener(counter(employeeCount));
+        }
+
+        private <T> RepositoryListener<T> counter(LongAdder count) {
+            return new RepositoryListener<>() {
+                @Override
+                public void inserted(T item) {
+                    count.increment();
+                    changed();
+                }
+
+                @Override
+                public void updated(T item) { }
+
+                @Override
+                public void deleted(T item) {
+                    count.decrement();
+                    changed();
+                }
+
+                @Override
+                public void reloaded(Iterable<T> items, List<T> previous) {
+                    count.reset();
+                    for (T item : items) count.increment();
+                    changed();
+                }
+            };
+        }
+
+        public long totalCars() { return totalCars.sum(); }
+        public long availableCars() { return availableCars.sum(); }
+        public long totalSalesCents() { return totalSalesCents.sum(); }
+        public long customers() { return customerCount.sum(); }
+        public long employees() { return employeeCount.sum(); }
+
+        public int salesOn(int epochDay) {
+            return sales.read(() -> salesByDay.get(epochDay, 0));
+        }
+
+        // May be called from any thread; the labels catch up on the next timer tick
+        private void changed() {
+            stale.set(true);
+        }
+
+        // A label for a stat card, kept showing value's result. Call on the EDT.
+        public JLabel bind(Supplier<String> value) {
+            JLabel label = new JLabel(value.get(), SwingConstants.CENTER);
+            labels.put(label, value);
+            if (timer == null) {
+                shownDay = (int) LocalDate.now().toEpochDay();
+                timer = new Timer(Math.max(15, Integer.getInteger("carretail.dashboard.refreshMillis", 250)), e -> refresh());
+                timer.start();
+            }
+            return label;
+        }
+
+        private void refresh() {
+            int today = (int) LocalDate.now().toEpochDay();
+            if (!stale.getAndSet(false) && today == shownDay) return;
+            shownDay = today;
+            labels.forEach((label, value) -> {
+                String text = value.get();
+                if (!text.equals(label.getText())) label.setText(text);
+            });
+        }
+    }
+
+    // Materialized sales aggregates keyed by customer id and employee id, kept in step
+    // with the sales repository. Inserts are applied incrementally; a delete only
+    // rescans when it touches a first/last date.
+    class SalesAggregateStore implements RepositoryListener<Sale> {
+        private final Repository<Sale> sales;
+        private final IntHashMap<SalesAggregate> byCustomer = new IntHashMap<>();
+        private final IntHashMap<SalesAggregate> byEmployee = new IntHashMap<>();
+
+        public SalesAggregateStore(Repository<Sale> sales) {
+            this.sales = sales;
+            sales.addListener(this);
+        }
+
+        @Override
+        public void inserted(Sale sale) {
+            record(sale);
+        }
+
+        @Override
+        public void updated(Sale sale) {
+            // Sale fields are immutable once recorded
+        }
+
+        @Override
+        public void deleted(Sale sale) {
+            unrecord(sale, sales);
+        }
+
+        @Override
+        public void reloaded(Iterable<Sale> items, List<Sale> previous) {
+            rebuild(items);
+        }
+
+        // Copies, taken under the sales read lock, so callers can't see a half-applied sale
+        public SalesAggregate forCustomer(int customerId) { return copyOf(byCustomer, customerId); }
+        public SalesAggregate forEmployee(int employeeId) { return copyOf(byEmployee, employeeId); }
+
+        private SalesAggregate copyOf(IntHashMap<SalesAggregate> map, int key) {
+            return sales.read(() -> {
+                SalesAggregate aggregate = map.get(key);
+                return aggregate != null ? aggregate.copy() : null;
+            });
+        }
+
+        public void record(Sale sale) {
+            aggregate(byCustomer, sale.getCustomerId()).add(sale);
+            aggregate(byEmployee, sale.getEmployeeId()).add(sale);
+        }
+
+        public void unrecord(Sale sale, Iterable<Sale> remaining) {
+            unrecord(byCustomer, sale.getCustomerId(), sale, remaining, Sale::getCustomerId);
+            unrecord(byEmployee, sale.getEmployeeId(), sale, remaining, Sale::getEmployeeId);
+        }
+
+        public void rebuild(Iterable<Sale> allSales) {
+            byCustomer.clear();
+            byEmployee.clear();
+            for (Sale sale : allSales) {
+                record(sale);
+            }
+        }
+
+        private SalesAggregate aggregate(IntHashMap<SalesAggregate> map, int key) {
+            SalesAggregate aggregate = map.get(key);
+            if (aggregate == null) {
+                aggregate = new SalesAggregate();
+                map.put(key, aggregate);
+            }
+            return aggregate;
+        }
+
+        private void unrecord(IntHashMap<SalesAggregate> map, int key, Sale sale,
+                              Iterable<Sale> remaining, ToIntFunction<Sale> keyOf) {
+            SalesAggregate aggregate = map.get(key);
+            if (aggregate == null) return;
+            if (aggregate.count <= 1) {
+                map.remove(key);
+                return;
+            }
+            aggregate.count--;
+            aggregate.revenue -= sale.getPrice();
+            if (sale.getEpochDay() == aggregate.first.getEpochDay() || sale.getEpochDay() == aggregate.last.getEpochDay()) {
+                SalesAggregate fresh = new SalesAggregate();
+                for (Sale other : remaining) {
+                    if (keyOf.applyAsInt(other) == key) fresh.add(other);
+                }
+                map.put(key, fresh);
+            }
+        }
+    }
+
+    // Sale dates are kept as epoch days for the date index; anything that isn't a
+    // yyyy-MM-dd date sorts before all real dates
+    private static int toEpochDay(String date) {
+        try {
+            return (int) LocalDate.parse(date.trim()).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    enum CarStatus {
+        AVAILABLE("Available"),
+        SOLD("Sold"),
+        RESERVED("Reserved"),
+        IN_SERVICE("In Service");
+
+        private final String label;
+
+        CarStatus(String label) {
+            this.label = label;
+        }
+
+        // Case-insensitive lookup by display label; null when nothing matches
+        static CarStatus fromLabel(String label) {
+            for (CarStatus status : values()) {
+                if (status.label.equalsIgnoreCase(label)) return status;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() { return label; }
+    }
+
+    // One bitmap of car ids per status plus running counts, so status counts are O(1)
+    // and listing a status walks only its set bits
+    class CarStatusIndex implements RepositoryListener<Car> {
+        private final Repository<Car> cars;
+        private final BitSet[] idsByStatus = new BitSet[CarStatus.values().length];
+        private final int[] counts = new int[CarStatus.values().length];
+
+        public CarStatusIndex(Repository<Car> cars) {
+            this.cars = cars;
+            for (int i = 0; i < idsByStatus.length; i++) idsByStatus[i] = new BitSet();
+            cars.addListener(this);
+        }
+
+        public int count(CarStatus status) {
+            return cars.read(() -> counts[status.ordinal()]);
+        }
+
+        // Cars with the status, in id order
+        public List<Car> carsWith(CarStatus status) {
+            return cars.read(() -> {
+                BitSet ids = idsByStatus[status.ordinal()];
+                List<Car> result = new ArrayList<>(counts[status.ordinal()]);
+                for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                    Car car = cars.findById(id);
+                    if (car != null) result.add(car);
+                }
+                return result;
+            });
+        }
+
+        private void clear(int carId) {
+            for (int i = 0; i < idsByStatus.length; i++) {
+                if (idsByStatus[i].get(carId)) {
+                    idsByStatus[i].clear(carId);
+                    counts[i]--;
+                }
+            }
+        }
+
+        @Override
+        public void inserted(Car car) {
+            idsByStatus[car.getStatus().ordinal()].set(car.getId());
+            counts[car.getStatus().ordinal()]++;
+        }
+
+        @Override
+        public void updated(Car car) {
+            clear(car.getId());
+            inserted(car);
+        }
+
+        @Override
+        public void deleted(Car car) {
+            clear(car.getId());
+        }
+
+        @Override
+        public void reloaded(Iterable<Car> items, List<Car> previous) {
+            for (BitSet ids : idsByStatus) ids.clear();
+            Arrays.fill(counts, 0);
+            for (Car car : items) {
+                inserted(car);
+            }
+        }
+    }
+
+    // VINs are compared trimmed and upper-cased; null for a blank VIN
+    static String vinKey(String vin) {
+        if (vin == null) return null;
+        String key = vin.trim().toUpperCase(Locale.ROOT);
+        return key.isEmpty() ? null : key;
+    }
+
+    // Unique index on VIN. A hash map answers exact lookups and duplicate checks in O(1);
+    // a sorted map of the same keys answers prefix searches. Keys are trimmed and
+    // upper-cased; blank VINs aren't indexed. Inserts and edits are checked under the
+    // repository's write lock (see Repository.addInsertCheck and addUpdateCheck), so no two
+    // cars can end up with one VIN. Data that already held duplicates (an old backup)
+    // still loads, with the first car keeping the VIN.
+    class VinIndex implements RepositoryListener<Car> {
+        private final Repository<Car> cars;
+        private final HashMap<String, Car> byVin = new HashMap<>();
+        private final TreeMap<String, Car> sorted = new TreeMap<>();
+        // The key each car is filed under, since edits change the VIN in place
+        private final IntHashMap<String> vinById = new IntHashMap<>();
+        // Decoded VINs, filled on first use and dropped with the car
+        private final ConcurrentHashMap<String, VinDetails> decoded = new ConcurrentHashMap<>();
+
+        public VinIndex(Repository<Car> cars) {
+            this.cars = cars;
+            cars.addListener(this);
+            cars.addInsertCheck(this::checkNew);
+            cars.addUpdateCheck(CarRetailSystem.this::copyOf, this::checkEdit);
+        }
+
+        // The car with this VIN, or null
+        public Car find(String vin) {
+            String key = vinKey(vin);
+            return key == null ? null : cars.read(() -> byVin.get(key));
+        }
+
+        // Cars whose VIN starts with the prefix, in repository order
+        public List<Car> withPrefix(String prefix) {
+            String key = vinKey(prefix);
+            if (key == null) return Collections.emptyList();
+            return cars.read(() -> {
+                Collection<Car> matches = sorted.subMap(key, true, key + Character.MAX_VALUE, false).values();
+                int[] positions = new int[matches.size()];
+                int count = 0;
+                for (Car car : matches) positions[count++] = cars.indexOf(car.getId());
+                Arrays.sort(positions);
+                List<Car> result = new ArrayList<>(count);
+                for (int position : positions) result.add(cars.get(position));
+                return result;
+            });
+        }
+
+        // Decoded once per VIN; later calls are a map lookup
+        public VinDetails details(String vin) {
+            String key = vinKey(vin);
+            return key == null ? null : decoded.computeIfAbsent(key, VinDetails::decode);
+        }
+
+        // Rejects a batch if any VIN is taken or repeats within the batch
+        private void checkNew(List<Car> batch) {
+            Set<String> seen = batch.size() > 1 ? new HashSet<>() : Collections.emptySet();
+            for (Car car : batch) {
+                String key = vinKey(car.getVin());
+                if (key == null) continue;
+                Car owner = byVin.get(key);
+                if (owner != null) {
+                    throw new IllegalArgumentException("VIN " + key + " already belongs to car #" + owner.getId());
+                }
+                if (batch.size() > 1 && !seen.add(key)) {
+                    throw new IllegalArgumentException("VIN " + key + " appears twice");
+                }
+            }
+        }
+
+        // Rejects an edit that gives a car a VIN another car holds; proposed is a copy
+        // of the car with the edit applied
+        private void checkEdit(Car proposed) {
+            String key = vinKey(proposed.getVin());
+            if (key == null) return;
+            Car owner = byVin.get(key);
+            if (owner != null && owner.getId() != proposed.getId()) {
+                throw new IllegalArgumentException("VIN " + key + " already belongs to car #" + owner.getId());
+            }
+        }
+
+        private void file(Car car) {
+            String key = vinKey(car.getVin());
+            if (key == null || byVin.containsKey(key)) return;
+            byVin.put(key, car);
+            sorted.put(key, car);
+            vinById.put(car.getId(), key);
+        }
+
+        private void unfile(int carId) {
+            String key = vinById.remove(carId);
+            if (key == null) return;
+            byVin.remove(key);
+            sorted.remove(key);
+            decoded.remove(key);
+        }
+
+        @Override
+        public void inserted(Car car) {
+            file(car);
+        }
+
+        @Override
+        public void updated(Car car) {
+            String key = vinById.get(car.getId());
+            if (key != null && key.equals(vinKey(car.getVin()))) return;
+            unfile(car.getId());
+            file(car);
+        }
+
+        @Override
+        public void deleted(Car car) {
+            unfile(car.getId());
+        }
+
+        @Override
+        public void reloaded(Iterable<Car> items, List<Car> previous) {
+            byVin.clear();
+            sorted.clear();
+            vinById.clear();
+            decoded.clear();
+            for (Car car : items) file(car);
+        }
+    }
+
+    // What a VIN says about itself. The model year and check digit follow the North
+    // American rules (position 10 and position 9); other markets may not use them, so
+    // a failed check digit is shown rather than treated as an error.
+    static class VinDetails {
+        private static final String YEAR_CODES = "ABCDEFGHJKLMNPRSTVWXY123456789";
+        private static final int[] WEIGHTS = {8, 7, 6, 5, 4, 3, 2, 10, 0, 9, 8, 7, 6, 5, 4, 3, 2};
+
+        final String vin;
+        final boolean wellFormed;
+        final String wmi;
+        final String region;
+        // 0 when position 10 isn't a year code
+        final int modelYear;
+        final boolean checkDigitValid;
+
+        private VinDetails(String vin, boolean wellFormed, String wmi, String region, int modelYear, boolean checkDigitValid) {
+            this.vin = vin;
+            this.wellFormed = wellFormed;
+            this.wmi = wmi;
+            this.region = region;
+            this.modelYear = modelYear;
+            this.checkDigitValid = checkDigitValid;
+        }
+
+        // vin must already be trimmed and upper-cased
+        static VinDetails decode(String vin) {
+            boolean wellFormed = vin.length() == 17;
+            for (int i = 0; i < vin.length() && wellFormed; i++) {
+                wellFormed = transliterate(vin.charAt(i)) >= 0;
+            }
+            String wmi = vin.length() >= 3 ? vin.substring(0, 3) : vin;
+            if (!wellFormed) {
+                return new VinDetails(vin, false, wmi, region(vin.charAt(0)), 0, false);
+            }
+
+            int sum = 0;
+            for (int i = 0; i < 17; i++) sum += transliterate(vin.charAt(i)) * WEIGHTS[i];
+            int remainder = sum % 11;
+            char expected = remainder == 10 ? 'X' : (char) ('0' + remainder);
+
+            // The 30-year cycle is told apart by position 7: a letter means 2010 onwards
+            int modelYear = 0;
+            int code = YEAR_CODES.indexOf(vin.charAt(9));
+            if (code >= 0) {
+                modelYear = 1980 + code + (Character.isLetter(vin.charAt(6)) ? 30 : 0);
+            }
+            return new VinDetails(vin, true, wmi, region(vin.charAt(0)), modelYear, vin.charAt(8) == expected);
+        }
+
+        // Check-digit value of a VIN character, -1 for characters a VIN can't contain
+        // (I, O and Q are left out so they aren't mistaken for 1 and 0)
+        private static int transliterate(char c) {
+            if (c >= '0' && c <= '9') return c - '0';
+            switch (c) {
+                case 'A': case 'J': return 1;
+                case 'B': case 'K': case 'S': return 2;
+                case 'C': case 'L': case 'T': return 3;
+                case 'D': case 'M': case 'U': return 4;
+                case 'E': case 'N': case 'V': return 5;
+                case 'F': case 'W': return 6;
+                case 'G': case 'P': case 'X': return 7;
+                case 'H': case 'Y': return 8;
+                case 'R': case 'Z': return 9;
+                default: return -1;
+            }
+        }
+
+        private static String region(char first) {
+            if (first >= '1' && first <= '5') return "North America";
+            if (first == '6' || first == '7') return "Oceania";
+            if (first == '8' || first == '9') return "South America";
+            if (first >= 'A' && first <= 'H') return "Africa";
+            if (first >= 'J' && first <= 'R') return "Asia";
+            if (first >= 'S' && first <= 'Z') return "Europe";
+            return "Unknown";
+        }
+
+        // One line for a tooltip
+        String summary() {
+            if (!wellFormed) return "VIN " + vin + " is not 17 valid characters";
+            return "WMI " + wmi + " (" + region + ")"
+                    + (modelYear > 0 ? " · model year " + modelYear : "")
+                    + " · check digit " + (checkDigitValid ? "OK" : "doesn't match");
+        }
+    }
+
+    // Sells and reserves cars. Every status change is a compare-and-set from the status it
+    // expects, made inside cars.update(car, edit), so it happens under the cars write lock
+    // together with the status index, dashboard, journal and write-behind records, and
+    // two clerks can't take the same car. A sale records the car as Sold before the sale
+    // itself and puts it back if the sale can't be added, so the journal and database
+    // never hold a sale for a car that isn't Sold. Holds live only in memory and expire
+    // on a timer thread; a car that is loaded Reserved (from the journal, JDBC or a
+    // backup) gets a hold with no customer that expires carretail.holdMinutes later.
+    class SaleTransactions implements RepositoryListener<Car> {
+        // Customer id of a hold rebuilt at load time, which anyone may buy through
+        static final int ANY_CUSTOMER = 0;
+
+        private final ConcurrentHashMap<Integer, Hold> holds = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "hold-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        class Hold {
+            final int carId;
+            final int customerId;
+            final long expiresAt;
+            volatile ScheduledFuture<?> expiry;
+
+            Hold(int carId, int customerId, long expiresAt) {
+                this.carId = carId;
+                this.customerId = customerId;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        public SaleTransactions() {
+            cars.addListener(this);
+        }
+
+        public Hold holdOn(int carId) {
+            return holds.get(carId);
+        }
+
+        // Throws IllegalStateException, with a message for the user, if the car can't be sold
+        public Sale sell(int carId, int customerId, int employeeId, String date, double price, String paymentMethod) {
+            Car car = cars.findById(carId);
+            if (car == null) {
+                throw new IllegalStateException("That car is no longer in the inventory");
+            }
+            Hold hold = holds.get(carId);
+            CarStatus from = CarStatus.AVAILABLE;
+            if (hold != null) {
+                if (hold.customerId != ANY_CUSTOMER && hold.customerId != customerId) {
+                    throw new IllegalStateException("That car is reserved for another customer");
+                }
+                // Take the hold away from the expiry timer; losing this race means it just expired
+                if (!holds.remove(carId, hold)) {
+                    throw new IllegalStateException("The reservation on that car has just expired");
+                }
+                cancelExpiry(hold);
+                from = CarStatus.RESERVED;
+            }
+            CarStatus expected = from;
+            cars.update(car, sold -> {
+                if (!sold.compareAndSetStatus(expected, CarStatus.SOLD)) {
+                    throw new IllegalStateException("That car is no longer available (it is now " + sold.getStatus() + ")");
+                }
+            });
+
+            try {
+                Sale sale = new Sale(saleIds.next(), date, customerId, carId, price, employeeId, paymentMethod);
+                sales.add(sale);
+                return sale;
+            } catch (RuntimeException e) {
+                cars.update(car, unsold -> unsold.compareAndSetStatus(CarStatus.SOLD, expected));
+                if (hold != null) {
+                    holds.put(carId, hold);
+                    scheduleExpiry(hold);
+                }
+                throw e;
+            }
+        }
+
+        public Hold reserve(int carId, int customerId, int minutes) {
+            Car car = cars.findById(carId);
+            if (car == null) {
+                throw new IllegalStateException("That car is no longer in the inventory");
+            }
+            cars.update(car, reserved -> {
+                if (!reserved.compareAndSetStatus(CarStatus.AVAILABLE, CarStatus.RESERVED)) {
+                    throw new IllegalStateException("Only available cars can be reserved (this one is " + reserved.getStatus() + ")");
+                }
+            });
+            return hold(carId, customerId, minutes);
+        }
+
+        private Hold hold(int carId, int customerId, int minutes) {
+            Hold hold = new Hold(carId, customerId, System.currentTimeMillis() + minutes * 60_000L);
+            holds.put(carId, hold);
+            scheduleExpiry(hold);
+            return hold;
+        }
+
+        // Applies the edit dialog's changes as one update. A status picked by hand only
+        // applies if the car still has the status the dialog showed, and leaving Reserved
+        // drops the hold so its expiry can't reopen the car later; Reserved itself needs a
+        // hold and so only comes from reserve(). Throws IllegalStateException, with a
+        // message for the user, if the status can't be applied, and IllegalArgumentException
+        // if an update check rejects the edit.
+        public void edit(Car car, CarStatus shown, CarStatus next, Consumer<Car> fields) {
+            if (next != shown && next == CarStatus.RESERVED) {
+                throw new IllegalStateException("Use Reserve to put a car on hold for a customer");
+            }
+            cars.update(car, edited -> {
+                if (next != shown && !edited.compareAndSetStatus(shown, next)) {
+                    throw new IllegalStateException("The car's status changed to " + edited.getStatus()
+                            + " while you were editing it; reopen the dialog to see the latest details");
+                }
+                fields.accept(edited);
+            });
+            if (next != shown) {
+                Hold hold = holds.remove(car.getId());
+                if (hold != null) cancelExpiry(hold);
+            }
+        }
+
+        // Ends the hold early and makes the car available again
+        public boolean release(int carId) {
+            Hold hold = holds.remove(carId);
+            if (hold == null) return false;
+            cancelExpiry(hold);
+            reopen(carId);
+            return true;
+        }
+
+        // The timer thread only claims the hold; the car is reopened on the EDT, because
+        // publishing the change appends to the journal, which is EDT only
+        private void scheduleExpiry(Hold hold) {
+            long delay = Math.max(0, hold.expiresAt - System.currentTimeMillis());
+            hold.expiry = timer.schedule(() -> {
+                if (holds.remove(hold.carId, hold)) SwingUtilities.invokeLater(() -> reopen(hold.carId));
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        // The expiry may not be scheduled yet; if so it will find the hold gone and do nothing
+        private void cancelExpiry(Hold hold) {
+            ScheduledFuture<?> expiry = hold.expiry;
+            if (expiry != null) expiry.cancel(false);
+        }
+
+        private void reopen(int carId) {
+            Car car = cars.findById(carId);
+            if (car != null && car.getStatus() == CarStatus.RESERVED) {
+                cars.update(car, reopened -> reopened.compareAndSetStatus(CarStatus.RESERVED, CarStatus.AVAILABLE));
+            }
+        }
+
+        // Cars arriving Reserved without a hold came from storage, which doesn't keep holds
+        @Override
+        public void inserted(Car car) {
+            if (car.getStatus() == CarStatus.RESERVED && !holds.containsKey(car.getId())) {
+                hold(car.getId(), ANY_CUSTOMER, Integer.getInteger("carretail.holdMinutes", 30));
+            }
+        }
+
+        @Override
+        public void updated(Car car) { }
+
+        @Override
+        public void deleted(Car car) {
+            Hold hold = holds.remove(car.getId());
+            if (hold != null) cancelExpiry(hold);
+        }
+    }
+
+    // Date and payment queries over the sales repository. Sales are immutable records of
+    // primitives (see Sale), so these read no Strings per sale and allocate only their
+    // results. byDay keeps (epoch day, id) pairs sorted, so a date range or the latest
+    // sales are a slice of it rather than a pass over every sale.
+    class SalesLedger {
+        private final Repository<Sale> sales;
+        private final SortedIntIndex<Sale> byDay;
+
+        public SalesLedger(Repository<Sale> sales) {
+            this.sales = sales;
+            byDay = new SortedIntIndex<>(sales, Sale::getId, Sale::getEpochDay);
+        }
+
+        // Sales with fromDay <= day <= toDay, in date order
+        public List<Sale> between(int fromDay, int toDay) {
+            return byDay.between(fromDay, toDay);
+        }
+
+        // The n most recent sales, newest first; same-day sales by highest id
+        public List<Sale> latest(int n) {
+            return byDay.highest(n);
+        }
+
+        // Sales whose payment method contains the (lowercased) query. Only the distinct
+        // payment methods are compared as text; sales are matched by code.
+        public List<Sale> withPaymentMethodContaining(String queryLower) {
+            List<Sale> all = sales.snapshot();
+            int codes = paymentMethods.size();
+            boolean[] matching = new boolean[codes];
+            for (int code = 0; code < codes; code++) {
+                String name = paymentMethods.name(code);
+                matching[code] = name != null && name.toLowerCase().contains(queryLower);
+            }
+            List<Sale> result = new ArrayList<>();
+            for (Sale sale : all) {
+                if (matching[sale.paymentCode]) result.add(sale);
+            }
+            return result;
+        }
+
+        // Totals for the sales report over the date range's slice of byDay
+        public SalesReport report(int fromDay, int toDay) {
+            List<Sale> inRange = byDay.between(fromDay, toDay);
+            int codes = paymentMethods.size();
+            long[] centsByCode = new long[codes];
+            int[] countByCode = new int[codes];
+            SalesReport report = new SalesReport();
+            for (Sale sale : inRange) {
+                report.count++;
+                report.cents += sale.cents;
+                centsByCode[sale.paymentCode] += sale.cents;
+                countByCode[sale.paymentCode]++;
+                long[] employee = report.byEmployee.get(sale.employeeId);
+                if (employee == null) {
+                    employee = new long[2];
+                    report.byEmployee.put(sale.employeeId, employee);
+                }
+                employee[0]++;
+                employee[1] += sale.cents;
+            }
+            for (int code = 0; code < codes; code++) {
+                if (countByCode[code] == 0) continue;
+                report.paymentMethods.put(String.valueOf(paymentMethods.name(code)),
+                        new long[]{countByCode[code], centsByCode[code]});
+            }
+            return report;
+        }
+    }
+
+    // Payment method names shared by every sale, numbered in order of first use; code 0 is
+    // null. A lookup by code reads a volatile array and takes no lock; only a name not
+    // seen before takes the monitor.
+    static class PaymentMethods {
+        private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[8];
+        private volatile int count = 1;
+
+        int code(String name) {
+            if (name == null) return 0;
+            Integer code = codes.get(name);
+            return code != null ? code : add(name);
+        }
+
+        private synchronized int add(String name) {
+            Integer existing = codes.get(name);
+            if (existing != null) return existing;
+            String[] current = names;
+            if (count == current.length) current = Arrays.copyOf(current, count * 2);
+            current[count] = name;
+            // Published before the code, so whoever gets the code can read the name
+            names = current;
+            int code = count++;
+            codes.put(name, code);
+            return code;
+        }
+
+        String name(int code) { return names[code]; }
+        int size() { return count; }
+    }
+
+    // Totals produced by SalesLedger.report; the long[] values are {count, cents}
+    class SalesReport {
+        long count;
+        long cents;
+        final LinkedHashMap<String, long[]> paymentMethods = new LinkedHashMap<>();
+        final IntHashMap<long[]> byEmployee = new IntHashMap<>();
+    }
+
+    // Column storage behind CompactCar. Make, model and color are codes into per-column
+    // dictionaries (a lot has few distinct values), status is a byte, the numbers are
+    // primitive columns and a VIN of up to 17 ASCII characters is stored as 17 raw bytes.
+    // That is about 50 bytes per car, against a few hundred for a HeapCar and its Strings.
+    // The columns can live outside the Java heap. A car takes a row when it is added to
+    // the repository; until then its fields sit in a HeapCar. When it is removed the
+    // fields are copied back out before the row is freed for reuse, so a CompactCar still
+    // held by a snapshot, a queued table event or a worker keeps reading its own values.
+    // Writes take the write side of a StampedLock (they already hold the cars write
+    // lock, so they never contend with each other). Reads are optimistic: they take no
+    // lock and retry under the read lock only if a write overlapped them, so table
+    // rendering and searches don't queue behind one another on a shared monitor.
+    class CarColumnStore implements RepositoryListener<Car> {
+        private static final int VIN_WIDTH = 17;
+        private static final int VIN_NULL = 0xFE;
+        private static final int VIN_IRREGULAR = 0xFF;
+
+        private final BufferColumn ids;
+        private final BufferColumn makes;
+        private final BufferColumn models;
+        private final BufferColumn colors;
+        private final BufferColumn statuses;
+        private final BufferColumn years;
+        private final BufferColumn prices;
+        private final BufferColumn mileages;
+        private final BufferColumn vinLengths;
+        private final BufferColumn vins;
+        private final BufferColumn[] columns;
+        private final StampedLock lock = new StampedLock();
+        // VINs that are longer than 17 characters or not ASCII, by row
+        private final IntHashMap<String> irregularVins = new IntHashMap<>();
+        private int[] freeRows = new int[16];
+        private int freeCount;
+        private int rows;
+
+        public CarColumnStore(Repository<Car> cars, boolean offHeap) {
+            ids = new BufferColumn(4, offHeap);
+            makes = new BufferColumn(4, offHeap);
+            models = new BufferColumn(4, offHeap);
+            colors = new BufferColumn(4, offHeap);
+            statuses = new BufferColumn(1, offHeap);
+            years = new BufferColumn(4, offHeap);
+            prices = new BufferColumn(8, offHeap);
+            mileages = new BufferColumn(4, offHeap);
+            vinLengths = new BufferColumn(1, offHeap);
+            vins = new BufferColumn(VIN_WIDTH, offHeap);
+            columns = new BufferColumn[]{ids, makes, models, colors, statuses, years, prices, mileages, vinLengths, vins};
+            cars.addListener(this);
+        }
+
+        // Moves a car's fields from its HeapCar into a row, reusing a freed one if there is one
+        private void attach(CompactCar car) {
+            HeapCar fields = car.detached;
+            int row;
+            if (freeCount > 0) {
+                row = freeRows[--freeCount];
+            } else {
+                row = rows++;
+                for (BufferColumn column : columns) column.reserve(row);
+            }
+            ids.putInt(row, fields.getId());
+            makes.putInt(row, carMakes.code(fields.getMake()));
+            models.putInt(row, carModels.code(fields.getModel()));
+            years.putInt(row, fields.getYear());
+            colors.putInt(row, carColors.code(fields.getColor()));
+            prices.putDouble(row, fields.getPrice());
+            putStatus(row, fields.getStatus());
+            mileages.putInt(row, fields.getMileage());
+            putVin(row, fields.getVin());
+            car.row = row;
+            car.detached = null;
+        }
+
+        // Copies a car's fields back to a HeapCar and frees its row for the next insert
+        private void detach(CompactCar car) {
+            int row = car.row;
+            car.detached = new HeapCar(ids.getInt(row), makeAt(row), modelAt(row), years.getInt(row), colorAt(row),
+                    prices.getDouble(row), statusAt(row), mileages.getInt(row), vinAt(row));
+            car.row = -1;
+            irregularVins.remove(row);
+            if (freeCount == freeRows.length) freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+            freeRows[freeCount++] = row;
+        }
+
+        // Reads a field without locking and keeps the result if no write happened meanwhile.
+        // A write can move the row, grow a column or detach the car under the read, which
+        // may surface as an exception; that is treated the same as a failed validation.
+        private <R> R read(CompactCar car, Function<CompactCar, R> field) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    R value = field.apply(car);
+                    if (lock.validate(stamp)) return value;
+                } catch (RuntimeException raced) {
+                    if (lock.validate(stamp)) throw raced;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return field.apply(car);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private int readInt(CompactCar car, ToIntFunction<CompactCar> field) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    int value = field.applyAsInt(car);
+                    if (lock.validate(stamp)) return value;
+                } catch (RuntimeException raced) {
+                    if (lock.validate(stamp)) throw raced;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return field.applyAsInt(car);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private double readDouble(CompactCar car, ToDoubleFunction<CompactCar> field) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    double value = field.applyAsDouble(car);
+                    if (lock.validate(stamp)) return value;
+                } catch (RuntimeException raced) {
+                    if (lock.validate(stamp)) throw raced;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return field.applyAsDouble(car);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void write(Runnable change) {
+            long stamp = lock.writeLock();
+            try {
+                change.run();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int id(CompactCar car) { return readInt(car, c -> c.row < 0 ? c.detached.getId() : ids.getInt(c.row)); }
+        String make(CompactCar car) { return read(car, c -> c.row < 0 ? c.detached.getMake() : makeAt(c.row)); }
+        String model(CompactCar car) { return read(car, c -> c.row < 0 ? c.detached.getModel() : modelAt(c.row)); }
+        int year(CompactCar car) { return readInt(car, c -> c.row < 0 ? c.detached.getYear() : years.getInt(c.row)); }
+        String color(CompactCar car) { return read(car, c -> c.row < 0 ? c.detached.getColor() : colorAt(c.row)); }
+        double price(CompactCar car) { return readDouble(car, c -> c.row < 0 ? c.detached.getPrice() : prices.getDouble(c.row)); }
+        int mileage(CompactCar car) { return readInt(car, c -> c.row < 0 ? c.detached.getMileage() : mileages.getInt(c.row)); }
+        CarStatus status(CompactCar car) { return read(car, c -> c.row < 0 ? c.detached.getStatus() : statusAt(c.row)); }
+        String vin(CompactCar car) { return read(car, c -> c.row < 0 ? c.detached.getVin() : vinAt(c.row)); }
+
+        private String makeAt(int row) { return carMakes.value(makes.getInt(row)); }
+        private String modelAt(int row) { return carModels.value(models.getInt(row)); }
+        private String colorAt(int row) { return carColors.value(colors.getInt(row)); }
+
+        private CarStatus statusAt(int row) {
+            int ordinal = statuses.getByte(row);
+            return ordinal < 0 ? null : CarStatus.values()[ordinal];
+        }
+
+        private String vinAt(int row) {
+            int length = vinLengths.getByte(row) & 0xFF;
+            if (length == VIN_NULL) return null;
+            if (length == VIN_IRREGULAR) return irregularVins.get(row);
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = vins.getByte(row, i);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        void setMake(CompactCar car, String make) {
+            write(() -> { if (car.row < 0) car.detached.setMake(make); else makes.putInt(car.row, carMakes.code(make)); });
+        }
+
+        void setModel(CompactCar car, String model) {
+            write(() -> { if (car.row < 0) car.detached.setModel(model); else models.putInt(car.row, carModels.code(model)); });
+        }
+
+        void setYear(CompactCar car, int year) {
+            write(() -> { if (car.row < 0) car.detached.setYear(year); else years.putInt(car.row, year); });
+        }
+
+        void setColor(CompactCar car, String color) {
+            write(() -> { if (car.row < 0) car.detached.setColor(color); else colors.putInt(car.row, carColors.code(color)); });
+        }
+
+        void setPrice(CompactCar car, double price) {
+            write(() -> { if (car.row < 0) car.detached.setPrice(price); else prices.putDouble(car.row, price); });
+        }
+
+        void setMileage(CompactCar car, int mileage) {
+            write(() -> { if (car.row < 0) car.detached.setMileage(mileage); else mileages.putInt(car.row, mileage); });
+        }
+
+        void setStatus(CompactCar car, CarStatus status) {
+            write(() -> { if (car.row < 0) car.detached.setStatus(status); else putStatus(car.row, status); });
+        }
+
+        void setVin(CompactCar car, String vin) {
+            write(() -> { if (car.row < 0) car.detached.setVin(vin); else putVin(car.row, vin); });
+        }
+
+        private void putStatus(int row, CarStatus status) {
+            statuses.putByte(row, (byte) (status == null ? -1 : status.ordinal()));
+        }
+
+        private void putVin(int row, String vin) {
+            irregularVins.remove(row);
+            if (vin == null) {
+                vinLengths.putByte(row, (byte) VIN_NULL);
+                return;
+            }
+            boolean ascii = vin.length() <= VIN_WIDTH;
+            for (int i = 0; ascii && i < vin.length(); i++) {
+                ascii = vin.charAt(i) < 0x80;
+            }
+            if (!ascii) {
+                vinLengths.putByte(row, (byte) VIN_IRREGULAR);
+                irregularVins.put(row, vin);
+                return;
+            }
+            for (int i = 0; i < vin.length(); i++) vins.putByte(row, i, (byte) vin.charAt(i));
+            vinLengths.putByte(row, (byte) vin.length());
+        }
+
+        @Override
+        public void inserted(Car car) {
+            if (car instanceof CompactCar && ((CompactCar) car).row < 0) write(() -> attach((CompactCar) car));
+        }
+
+        @Override
+        public void updated(Car car) { }
+
+        @Override
+        public void deleted(Car car) {
+            if (car instanceof CompactCar && ((CompactCar) car).row >= 0) write(() -> detach((CompactCar) car));
+        }
+
+        // Rows of cars that didn't survive the reload are freed before new cars are
+        // attached, so a restore of the same inventory reuses them
+        @Override
+        public void reloaded(Iterable<Car> items, List<Car> previous) {
+            write(() -> reattach(items, previous));
+        }
+
+        private void reattach(Iterable<Car> items, List<Car> previous) {
+            BitSet kept = new BitSet(rows);
+            for (Car car : items) {
+                if (car instanceof CompactCar && ((CompactCar) car).row >= 0) kept.set(((CompactCar) car).row);
+            }
+            for (Car car : previous) {
+                if (car instanceof CompactCar && ((CompactCar) car).row >= 0 && !kept.get(((CompactCar) car).row)) {
+                    detach((CompactCar) car);
+                }
+            }
+            for (Car car : items) {
+                if (car instanceof CompactCar && ((CompactCar) car).row < 0) attach((CompactCar) car);
+            }
+        }
+    }
+
+    // Distinct strings numbered in order of first appearance; null is a value like any
+    // other. Each value's lowercase form is kept beside it for searching (null's is "").
+    // Only adding a value takes the monitor: the arrays are republished through a
+    // volatile after the new slot is written, so a code can be looked up from any thread.
+    static class StringDictionary {
+        private final HashMap<String, Integer> codes = new HashMap<>();
+        private volatile String[] values = new String[16];
+        private volatile String[] lowercase = new String[16];
+        private volatile int size;
+
+        synchronized int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = size;
+                String[] nextValues = values;
+                String[] nextLowercase = lowercase;
+                if (code == nextValues.length) {
+                    nextValues = Arrays.copyOf(nextValues, code * 2);
+                    nextLowercase = Arrays.copyOf(nextLowercase, code * 2);
+                }
+                nextValues[code] = value;
+                nextLowercase[code] = value == null ? "" : value.toLowerCase();
+                lowercase = nextLowercase;
+                values = nextValues;
+                size = code + 1;
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        String value(int code) { return values[code]; }
+        String lowercase(int code) { return lowercase[code]; }
+        int size() { return size; }
+    }
+
+    // Growable fixed-width column in a heap or direct ByteBuffer
+    static class BufferColumn {
+        private final int width;
+        private final boolean offHeap;
+        private ByteBuffer buffer;
+
+        BufferColumn(int width, boolean offHeap) {
+            this.width = width;
+            this.offHeap = offHeap;
+            buffer = allocate(64 * width);
+        }
+
+        private ByteBuffer allocate(int bytes) {
+            return offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        }
+
+        void reserve(int row) {
+            long needed = (long) (row + 1) * width;
+            if (needed <= buffer.capacity()) return;
+            if (needed > Integer.MAX_VALUE) throw new IllegalStateException("Column is full");
+            ByteBuffer bigger = allocate((int) Math.min(Integer.MAX_VALUE, Math.max(needed, buffer.capacity() * 2L)));
+            ByteBuffer old = buffer.duplicate();
+            old.clear();
+            bigger.put(old);
+            bigger.clear();
+            buffer = bigger;
+        }
+
+        int getInt(int row) { return buffer.getInt(row * width); }
+        double getDouble(int row) { return buffer.getDouble(row * width); }
+        byte getByte(int row) { return buffer.get(row * width); }
+        byte getByte(int row, int index) { return buffer.get(row * width + index); }
+        void putInt(int row, int value) { buffer.putInt(row * width, value); }
+        void putDouble(int row, double value) { buffer.putDouble(row * width, value); }
+        void putByte(int row, byte value) { buffer.put(row * width, value); }
+        void putByte(int row, int index, byte value) { buffer.put(row * width + index, value); }
+    }
+
+    // Persistence layer
+    interface StatementBinder<T> {
+        void bind(PreparedStatement statement, T item) throws SQLException;
+    }
+
+    interface RowReader<T> {
+        T read(ResultSet row) throws SQLException;
+    }
+
+    // How one entity type maps onto a table. The first column is always the int id.
+    class JdbcTable<T> {
+        final String name;
+        final ToIntFunction<T> idOf;
+        final String[] columnDefinitions;
+        final String[] columns;
+        final StatementBinder<T> binder;
+        final RowReader<T> reader;
+
+        public JdbcTable(String name, ToIntFunction<T> idOf, String[] columnDefinitions,
+                         StatementBinder<T> binder, RowReader<T> reader) {
+            this.name = name;
+            this.idOf = idOf;
+            this.columnDefinitions = columnDefinitions;
+            this.binder = binder;
+            this.reader = reader;
+            columns = new String[columnDefinitions.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = columnDefinitions[i].substring(0, columnDefinitions[i].indexOf(' '));
+            }
+        }
+
+        String createSql() {
+            return "CREATE TABLE IF NOT EXISTS " + name + " (" + String.join(", ", columnDefinitions) + ")";
+        }
+
+        String selectSql() {
+            return "SELECT " + String.join(", ", columns) + " FROM " + name + " ORDER BY id";
+        }
+
+        // MySQL upsert; H2 accepts the same syntax in MODE=MySQL
+        String upsertSql() {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(name)
+                    .append(" (").append(String.join(", ", columns)).append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) sql.append(i == 0 ? "?" : ", ?");
+            sql.append(") ON DUPLICATE KEY UPDATE ");
+            for (int i = 1; i < columns.length; i++) {
+                sql.append(i == 1 ? "" : ", ").append(columns[i]).append(" = VALUES(").append(columns[i]).append(")");
+            }
+            return sql.toString();
+        }
+
+        String deleteSql() {
+            return "DELETE FROM " + name + " WHERE id = ?";
+        }
+    }
+
+    // Fixed-size pool of JDBC connections. Connections are opened on demand up to the
+    // limit, validated when borrowed and handed back with release().
+    class ConnectionPool implements AutoCloseable {
+        private final String url;
+        private final String user;
+        private final String password;
+        private final int maxSize;
+        private final BlockingQueue<Connection> idle;
+        private int opened;
+
+        public ConnectionPool(String url, String user, String password, int maxSize) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+            this.maxSize = Math.max(1, maxSize);
+            idle = new ArrayBlockingQueue<>(this.maxSize);
+        }
+
+        public Connection borrow() throws SQLException {
+            while (true) {
+                Connection connection = idle.poll();
+                if (connection == null) {
+                    synchronized (this) {
+                        if (opened < maxSize) {
+                            Connection fresh = DriverManager.getConnection(url, user, password);
+                            opened++;
+                            return fresh;
+                        }
+                    }
+                    try {
+                        connection = idle.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a connection", e);
+                    }
+                }
+                if (connection.isValid(2)) {
+                    return connection;
+                }
+                discard(connection);
+            }
+        }
+
+        public void release(Connection connection) {
+            if (!idle.offer(connection)) {
+                discard(connection);
+            }
+        }
+
+        private void discard(Connection connection) {
+            synchronized (this) {
+                opened--;
+            }
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+                // Already broken
+            }
+        }
+
+        @Override
+        public void close() {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                discard(connection);
+            }
+        }
+    }
+
+    // JDBC-backed storage for the four entity types: prepared statements throughout,
+    // writes batched in one transaction per call
+    class JdbcStore {
+        private static final int BATCH_SIZE = 500;
+
+        private final ConnectionPool pool;
+
+        public JdbcStore(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        public void createSchema(JdbcTable<?>... tables) throws SQLException {
+            Connection connection = pool.borrow();
+            try (Statement statement = connection.createStatement()) {
+                for (JdbcTable<?> table : tables) {
+                    statement.execute(table.createSql());
+                }
+                statement.execute("CREATE TABLE IF NOT EXISTS id_sequences (name VARCHAR(32) PRIMARY KEY, next_id BIGINT)");
+            } finally {
+                pool.release(connection);
+            }
+        }
+
+        public <T> int load(JdbcTable<T> table, Consumer<T> sink) throws SQLException {
+            Connection connection = pool.borrow();
+            int count = 0;
+            try (PreparedStatement statement = connection.prepareStatement(table.selectSql())) {
+                statement.setFetchSize(1000);
+                try (ResultSet row = statement.executeQuery()) {
+                    while (row.next()) {
+                        sink.accept(table.reader.read(row));
+                        count++;
+                    }
+                }
+            } finally {
+                pool.release(connection);
+            }
+            return count;
+        }
+
+        public <T> void upsert(JdbcTable<T> table, Collection<T> items) throws SQLException {
+            if (items.isEmpty()) return;
+            inTransaction(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(table.upsertSql())) {
+                    int pending = 0;
+                    for (T item : items) {
+                        table.binder.bind(statement, item);
+                        statement.addBatch();
+                        if (++pending == BATCH_SIZE) {
+                            statement.executeBatch();
+                            pending = 0;
+                        }
+                    }
+                    if (pending > 0) statement.executeBatch();
+                }
+            });
+        }
+
+        public void delete(JdbcTable<?> table, int[] ids) throws SQLException {
+            if (ids.length == 0) return;
+            inTransaction(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(table.deleteSql())) {
+                    for (int i = 0; i < ids.length; i++) {
+                        statement.setInt(1, ids[i]);
+                        statement.addBatch();
+                        if ((i + 1) % BATCH_SIZE == 0) statement.executeBatch();
+                    }
+                    if (ids.length % BATCH_SIZE != 0) statement.executeBatch();
+                }
+            });
+        }
+
+        // Reserves count ids, none below floor, from the shared sequence row. The row lock
+        // makes this safe against other terminals claiming at the same time.
+        public long claimIds(String sequence, int count, long floor) throws SQLException {
+            long[] start = new long[1];
+            inTransaction(connection -> {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO id_sequences (name, next_id) VALUES (?, 1) ON DUPLICATE KEY UPDATE next_id = next_id")) {
+                    insert.setString(1, sequence);
+                    insert.executeUpdate();
+                }
+                try (PreparedStatement select = connection.prepareStatement(
+                        "SELECT next_id FROM id_sequences WHERE name = ? FOR UPDATE")) {
+                    select.setString(1, sequence);
+                    try (ResultSet row = select.executeQuery()) {
+                        row.next();
+                        start[0] = Math.max(row.getLong(1), floor);
+                    }
+                }
+                try (PreparedStatement update = connection.prepareStatement(
+                        "UPDATE id_sequences SET next_id = ? WHERE name = ?")) {
+                    update.setLong(1, start[0] + count);
+                    update.setString(2, sequence);
+                    update.executeUpdate();
+                }
+            });
+            return start[0];
+        }
+
+        private void inTransaction(SqlWork work) throws SQLException {
+            Connection connection = pool.borrow();
+            boolean autoCommit = connection.getAutoCommit();
+            try {
+                connection.setAutoCommit(false);
+                work.run(connection);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+                pool.release(connection);
+            }
+        }
+
+        public void close() {
+            pool.close();
+        }
+    }
+
+    interface SqlWork {
+        void run(Connection connection) throws SQLException;
+    }
+
+    // Collects repository changes and writes them to the database on a background thread.
+    // Repeated changes to the same row are coalesced so only the latest state is written;
+    // a flush happens once maxPending rows are queued or flushIntervalMillis has passed.
+    // After a failed flush the writer backs off, doubling the wait up to MAX_BACKOFF_MILLIS,
+    // so a database that is down isn't retried in a tight loop.
+    class WriteBehindQueue {
+        static final long MIN_BACKOFF_MILLIS = 100;
+        static final long MAX_BACKOFF_MILLIS = 30_000;
+
+        private final JdbcStore store;
+        private final int maxPending;
+        private final long flushIntervalMillis;
+        private final Object lock = new Object();
+        private LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+        private final Thread writer;
+        private boolean running = true;
+        private boolean failing;
+        // 0 while flushes succeed; guarded by lock
+        private long backoffMillis;
+        // Rows in the batch being written; guarded by lock
+        private int inFlight;
+
+        // Metrics
+        private long flushCount;
+        private long rowsWritten;
+        private long totalFlushNanos;
+        private long lastFlushNanos;
+        private long failureCount;
+
+        public WriteBehindQueue(JdbcStore store, int maxPending, long flushIntervalMillis) {
+            this.store = store;
+            this.maxPending = Math.max(1, maxPending);
+            this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+            writer = new Thread(this::runWriter, "write-behind");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public <T> void enqueueUpsert(JdbcTable<T> table, T item) {
+            enqueue(new PendingWrite(table, table.idOf.applyAsInt(item), item));
+        }
+
+        public void enqueueDelete(JdbcTable<?> table, int id) {
+            enqueue(new PendingWrite(table, id, null));
+        }
+
+        private void enqueue(PendingWrite write) {
+            synchronized (lock) {
+                // Remove first so the row moves to the back and keeps writes in change order
+                pending.remove(write.key());
+                pending.put(write.key(), write);
+                if (pending.size() >= maxPending) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        private void runWriter() {
+            while (true) {
+                LinkedHashMap<String, PendingWrite> batch;
+                synchronized (lock) {
+                    // A retry waits out its backoff even when the queue is full or closing
+                    boolean retrying = backoffMillis > 0;
+                    long deadline = System.currentTimeMillis() + (retrying ? backoffMillis : flushIntervalMillis);
+                    while (retrying || (running && pending.size() < maxPending)) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) break;
+                        try {
+                            lock.wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (!running && pending.isEmpty()) return;
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                    inFlight = batch.size();
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            }
+        }
+
+        private void write(LinkedHashMap<String, PendingWrite> batch) {
+            long start = System.nanoTime();
+            try {
+                writeBatch(batch);
+                long elapsed = System.nanoTime() - start;
+                synchronized (lock) {
+                    flushCount++;
+                    rowsWritten += batch.size();
+                    totalFlushNanos += elapsed;
+                    lastFlushNanos = elapsed;
+                    failing = false;
+                    backoffMillis = 0;
+                    inFlight = 0;
+                }
+            } catch (SQLException e) {
+                boolean report;
+                synchronized (lock) {
+                    failureCount++;
+                    report = !failing;
+                    failing = true;
+                    backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                    // Put the batch back unless a newer change to the same row arrived meanwhile
+                    LinkedHashMap<String, PendingWrite> retry = new LinkedHashMap<>(batch);
+                    for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+                        retry.remove(entry.getKey());
+                        retry.put(entry.getKey(), entry.getValue());
+                    }
+                    pending = retry;
+                    inFlight = 0;
+                }
+                if (report) {
+                    SwingUtilities.invokeLater(() -> reportPersistenceError(e));
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeBatch(LinkedHashMap<String, PendingWrite> batch) throws SQLException {
+            // Group by table, keeping tables in the order they were first touched
+            LinkedHashMap<JdbcTable<?>, List<Object>> upserts = new LinkedHashMap<>();
+            LinkedHashMap<JdbcTable<?>, IntIntHashMap> deletes = new LinkedHashMap<>();
+            for (PendingWrite write : batch.values()) {
+                if (write.item != null) {
+                    upserts.computeIfAbsent(write.table, t -> new ArrayList<>()).add(write.item);
+                } else {
+                    deletes.computeIfAbsent(write.table, t -> new IntIntHashMap()).put(write.id, 0);
+                }
+            }
+            for (Map.Entry<JdbcTable<?>, List<Object>> entry : upserts.entrySet()) {
+                store.upsert((JdbcTable<Object>) entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<JdbcTable<?>, IntIntHashMap> entry : deletes.entrySet()) {
+                int[] ids = new int[entry.getValue().size()];
+                int[] next = {0};
+                entry.getValue().forEachKey(id -> ids[next[0]++] = id);
+                store.delete(entry.getKey(), ids);
+            }
+        }
+
+        // Writes everything still queued and stops the writer thread. Gives up after 10 s
+        // and returns the number of rows that never reached the database, which is also
+        // reported on stderr since this usually runs in a shutdown hook.
+        public int close() {
+            synchronized (lock) {
+                running = false;
+                lock.notifyAll();
+            }
+            try {
+                writer.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!writer.isAlive()) return 0;
+            int unsaved;
+            synchronized (lock) {
+                unsaved = pending.size() + inFlight;
+            }
+            System.err.println("write-behind: gave up waiting for the database on shutdown; "
+                    + unsaved + " row change(s) may not have been saved");
+            return unsaved;
+        }
+
+        public int getQueueDepth() {
+            synchronized (lock) {
+                return pending.size();
+            }
+        }
+
+        public long getFlushCount() {
+            synchronized (lock) {
+                return flushCount;
+            }
+        }
+
+        public long getRowsWritten() {
+            synchronized (lock) {
+                return rowsWritten;
+            }
+        }
+
+        public long getFailureCount() {
+            synchronized (lock) {
+                return failureCount;
+            }
+        }
+
+        public double getLastFlushMillis() {
+            synchronized (lock) {
+                return lastFlushNanos / 1_000_000.0;
+            }
+        }
+
+        public double getAverageFlushMillis() {
+            synchronized (lock) {
+                return flushCount == 0 ? 0 : totalFlushNanos / 1_000_000.0 / flushCount;
+            }
+        }
+    }
+
+    static class PendingWrite {
+        final JdbcTable<?> table;
+        final int id;
+        final Object item; // null for a delete
+
+        PendingWrite(JdbcTable<?> table, int id, Object item) {
+            this.table = table;
+            this.id = id;
+            this.item = item;
+        }
+
+        String key() {
+            return table.name + ":" + id;
+        }
+    }
+
+    // Hands every repository change to the write-behind queue. The writer thread binds
+    // the row later, so it gets a copy taken here, under the repository's write lock,
+    // rather than the entity an edit dialog may change again by then.
+    class WriteBehindListener<T> implements RepositoryListener<T> {
+        private final JdbcTable<T> table;
+        private final UnaryOperator<T> copy;
+
+        public WriteBehindListener(JdbcTable<T> table, UnaryOperator<T> copy) {
+            this.table = table;
+            this.copy = copy;
+        }
+
+        @Override
+        public void inserted(T item) {
+            writeBehind.enqueueUpsert(table, copy.apply(item));
+        }
+
+        @Override
+        public void updated(T item) {
+            writeBehind.enqueueUpsert(table, copy.apply(item));
+        }
+
+        @Override
+        public void deleted(T item) {
+            writeBehind.enqueueDelete(table, table.idOf.applyAsInt(item));
+        }
+    }
+
+    private void reportPersistenceError(Exception e) {
+        JOptionPane.showMessageDialog(this, "Error saving data: " + e.getMessage(), "Database Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    // Writes RFC 4180 CSV: fields holding a comma, quote or line break are quoted with
+    // quotes doubled, and rows end in CRLF. Output goes through a 256 KB buffer, optionally
+    // gzip-compressed.
+    static class CsvWriter implements Closeable {
+        private final Writer out;
+        private boolean firstField = true;
+
+        CsvWriter(Path file, boolean gzip) throws IOException {
+            OutputStream stream = Files.newOutputStream(file);
+            try {
+                if (gzip) stream = new GZIPOutputStream(stream, 64 * 1024);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+            out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 256 * 1024);
+        }
+
+        void field(String value) throws IOException {
+            if (!firstField) out.write(',');
+            firstField = false;
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                out.write(value);
+                return;
+            }
+            out.write('"');
+            int from = 0;
+            for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', i + 1)) {
+                out.write(value, from, i + 1 - from);
+                out.write('"');
+                from = i + 1;
+            }
+            out.write(value, from, value.length() - from);
+            out.write('"');
+        }
+
+        void endRow() throws IOException {
+            out.write("\r\n");
+            firstField = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Bulk import
+    // One manifest row that passed validation; the id is assigned when the batch is added
+    static class ImportedCar {
+        final String make;
+        final String model;
+        final int year;
+        final String color;
+        final double price;
+        final CarStatus status;
+        final int mileage;
+        final String vin;
+
+        ImportedCar(String make, String model, int year, String color, double price, CarStatus status, int mileage, String vin) {
+            this.make = make;
+            this.model = model;
+            this.year = year;
+            this.color = color;
+            this.price = price;
+            this.status = status;
+            this.mileage = mileage;
+            this.vin = vin;
+        }
+    }
+
+    static class CarImport {
+        int records;
+        long parseNanos;
+        final List<ImportedCar> accepted = new ArrayList<>();
+        final List<String> rejects = new ArrayList<>();
+        IdBlock ids;
+    }
+
+    // Reads the top-level fields of a one-line JSON object. Strings are unescaped;
+    // numbers, true and false are kept as their text and null gives null. Manifests are
+    // flat, so nested objects and arrays are rejected.
+    static class JsonLineParser {
+        private final String text;
+        private int position;
+
+        private JsonLineParser(String text) {
+            this.text = text;
+        }
+
+        // values[i] gets the field called names[i], or null if the object doesn't have it
+        static void fields(String line, String[] names, String[] values) {
+            Arrays.fill(values, null);
+            JsonLineParser parser = new JsonLineParser(line);
+            parser.expect('{');
+            if (!parser.consume('}')) {
+                do {
+                    parser.skipSpace();
+                    String name = parser.string();
+                    parser.expect(':');
+                    String value = parser.value();
+                    for (int i = 0; i < names.length; i++) {
+                        if (names[i].equals(name)) values[i] = value;
+                    }
+                } while (parser.consume(','));
+                parser.expect('}');
+            }
+            parser.skipSpace();
+            if (parser.position < line.length()) throw parser.error("unexpected text after the object");
+        }
+
+        private void skipSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+        }
+
+        private boolean consume(char c) {
+            skipSpace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) throw error("expected '" + c + "'");
+        }
+
+        private String value() {
+            skipSpace();
+            if (position >= text.length()) throw error("missing value");
+            char c = text.charAt(position);
+            if (c == '"') return string();
+            if (c == '{' || c == '[') throw error("nested values are not supported");
+            int start = position;
+            while (position < text.length() && ",}".indexOf(text.charAt(position)) < 0
+                    && !Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            String token = text.substring(start, position);
+            if (token.equals("null")) return null;
+            if (token.equals("true") || token.equals("false")
+                    || token.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+                return token;
+            }
+            throw error("bad value " + token);
+        }
+
+        private String string() {
+            if (position >= text.length() || text.charAt(position) != '"') throw error("expected a string");
+            StringBuilder value = new StringBuilder();
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) break;
+                char escape = text.charAt(position++);
+                switch (escape) {
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'u':
+                        if (position + 4 > text.length()) throw error("short \\u escape");
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad \\u escape");
+                        }
+                        position += 4;
+                        break;
+                    default: value.append(escape);
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("bad JSON at column " + (position + 1) + ": " + message);
+        }
+    }
+
+    // Backup files
+    // Splits one CSV line into field offsets without allocating per field; only the fields
+    // a caller asks for become Strings. Quoted fields follow RFC 4180.
+    static class CsvLineScanner {
+        private String line;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private boolean[] quoted = new boolean[16];
+        private int count;
+        private boolean complete;
+
+        // False when the line ends inside a quoted field and needs the next line appended
+        boolean scan(String line) {
+            this.line = line;
+            count = 0;
+            int length = line.length();
+            int i = 0;
+            while (true) {
+                if (count == starts.length) grow();
+                if (i < length && line.charAt(i) == '"') {
+                    int start = ++i;
+                    while (true) {
+                        if (i >= length) {
+                            complete = false;
+                            return false;
+                        }
+                        if (line.charAt(i) == '"') {
+                            if (i + 1 < length && line.charAt(i + 1) == '"') {
+                                i += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        i++;
+                    }
+                    starts[count] = start;
+                    ends[count] = i;
+                    quoted[count] = true;
+                    count++;
+                    i++;
+                    // Skip anything between the closing quote and the next comma
+                    while (i < length && line.charAt(i) != ',') i++;
+                } else {
+                    int start = i;
+                    while (i < length && line.charAt(i) != ',') i++;
+                    starts[count] = start;
+                    ends[count] = i;
+                    quoted[count] = false;
+                    count++;
+                }
+                if (i >= length) break;
+                i++;
+            }
+            complete = true;
+            return true;
+        }
+
+        private void grow() {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+            ends = Arrays.copyOf(ends, ends.length * 2);
+            quoted = Arrays.copyOf(quoted, quoted.length * 2);
+        }
+
+        boolean isComplete() { return complete; }
+        int fieldCount() { return count; }
+
+        String text(int field) {
+            String value = line.substring(starts[field], ends[field]);
+            return quoted[field] ? value.replace("\"\"", "\"") : value;
+        }
+
+        // Fields from..to joined back together with their commas
+        String span(int from, int to) {
+            if (from == to) return text(from);
+            for (int field = from; field <= to; field++) {
+                if (quoted[field]) {
+                    StringBuilder joined = new StringBuilder(text(from));
+                    for (int next = from + 1; next <= to; next++) joined.append(',').append(text(next));
+                    return joined.toString();
+                }
+            }
+            return line.substring(starts[from], ends[to]);
+        }
+
+        int intValue(int field) {
+            int i = starts[field], end = ends[field];
+            while (i < end && line.charAt(i) == ' ') i++;
+            while (end > i && line.charAt(end - 1) == ' ') end--;
+            if (i == end) throw new NumberFormatException("Empty number");
+            boolean negative = line.charAt(i) == '-';
+            if (negative && ++i == end) throw new NumberFormatException("Bad number");
+            long value = 0;
+            for (; i < end; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9') throw new NumberFormatException("Bad number: " + line.substring(starts[field], ends[field]));
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE + 1L) throw new NumberFormatException("Number too large");
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) throw new NumberFormatException("Number too large");
+            return (int) value;
+        }
+    }
+
+    static class BackupTable<T> {
+        final List<T> rows = new ArrayList<>();
+        int rejected;
+    }
+
+    // A sales row as written to the backup, before names are resolved back to ids
+    static class BackupSale {
+        final int id;
+        final String date;
+        final String customer;
+        final String car;
+        final double price;
+        final String employee;
+        final String paymentMethod;
+
+        BackupSale(int id, String date, String customer, String car, double price, String employee, String paymentMethod) {
+            this.id = id;
+            this.date = date;
+            this.customer = customer;
+            this.car = car;
+            this.price = price;
+            this.employee = employee;
+            this.paymentMethod = paymentMethod;
+        }
+    }
+
+    class BackupContents {
+        final BackupTable<Car> cars;
+        final BackupTable<Customer> customers;
+        final BackupTable<Employee> employees;
+        final BackupTable<BackupSale> sales;
+
+        BackupContents(BackupTable<Car> cars, BackupTable<Customer> customers,
+                       BackupTable<Employee> employees, BackupTable<BackupSale> sales) {
+            this.cars = cars;
+            this.customers = customers;
+            this.employees = employees;
+            this.sales = sales;
+        }
+    }
+
+    // Binary backup format, version 1. All numbers are big-endian.
+    //   header:  int magic "CRSB", short version, short reserved, long created (epoch millis)
+    //   body:    four sections (cars, customers, employees, sales), each a tag byte and an
+    //            int record count followed by the records, fields in constructor order
+    //   trailer: int magic "CRSE", long CRC32 of the body
+    // Strings are an int byte length (-1 for null) followed by UTF-8 bytes; a car's status
+    // is its CarStatus ordinal.
+    static final int BACKUP_MAGIC = 0x43525342;
+    static final int BACKUP_END_MAGIC = 0x43525345;
+    static final short BACKUP_VERSION = 1;
+    static final byte SECTION_CARS = 'C';
+    static final byte SECTION_CUSTOMERS = 'U';
+    static final byte SECTION_EMPLOYEES = 'E';
+    static final byte SECTION_SALES = 'S';
+
+    // The four entity lists at one point in time
+    static class DataSnapshot {
+        final List<Car> cars;
+        final List<Customer> customers;
+        final List<Employee> employees;
+        final List<Sale> sales;
+
+        DataSnapshot(List<Car> cars, List<Customer> customers, List<Employee> employees, List<Sale> sales) {
+            this.cars = cars;
+            this.customers = customers;
+            this.employees = employees;
+            this.sales = sales;
+        }
+
+        // Cars, customers and employees are edited in place, so they are copied under
+        // each repository's read lock; sales never change once recorded and are shared
+        static DataSnapshot capture(CarRetailSystem system) {
+            return new DataSnapshot(copyAll(system.cars, system::copyOf), copyAll(system.customers, system::copyOf),
+                    copyAll(system.employees, system::copyOf), system.sales.snapshot());
+        }
+
+        private static <T> List<T> copyAll(Repository<T> repository, UnaryOperator<T> copy) {
+            return repository.read(() -> {
+                List<T> copies = new ArrayList<>(repository.size());
+                for (T item : repository.snapshot()) copies.add(copy.apply(item));
+                return copies;
+            });
+        }
+    }
+
+    // Field-by-field binary encoding of the four entity types, shared by the backup file
+    // and the journal. Subclasses decide what happens when the buffer runs out of room.
+    abstract static class EntityEncoder {
+        protected ByteBuffer buffer;
+
+        protected abstract void ensure(int bytes) throws IOException;
+
+        protected void putString(String value) throws IOException {
+            if (value == null) {
+                ensure(4);
+                buffer.putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensure(4);
+            buffer.putInt(bytes.length);
+            for (int offset = 0; offset < bytes.length; ) {
+                if (!buffer.hasRemaining()) ensure(1);
+                int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+            }
+        }
+
+        protected void putCar(Car car) throws IOException {
+            ensure(4);
+            buffer.putInt(car.getId());
+            putString(car.getMake());
+            putString(car.getModel());
+            ensure(4);
+            buffer.putInt(car.getYear());
+            putString(car.getColor());
+            ensure(8 + 1 + 4);
+            buffer.putDouble(car.getPrice());
+            buffer.put((byte) car.getStatus().ordinal());
+            buffer.putInt(car.getMileage());
+            putString(car.getVin());
+        }
+
+        protected void putCustomer(Customer customer) throws IOException {
+            ensure(4);
+            buffer.putInt(customer.getId());
+            putString(customer.getName());
+            putString(customer.getPhone());
+            putString(customer.getEmail());
+            putString(customer.getAddress());
+            putString(customer.getDriverLicense());
+        }
+
+        protected void putEmployee(Employee employee) throws IOException {
+            ensure(4);
+            buffer.putInt(employee.getId());
+            putString(employee.getName());
+            putString(employee.getPosition());
+            putString(employee.getPhone());
+            putString(employee.getEmail());
+            putString(employee.getHireDate());
+            ensure(8);
+            buffer.putDouble(employee.getSalary());
+            putString(employee.getUsername());
+            putString(employee.getPassword());
+        }
+
+        protected void putSale(Sale sale) throws IOException {
+            ensure(4);
+            buffer.putInt(sale.getId());
+            putString(sale.getDate());
+            ensure(4 + 4 + 8 + 4);
+            buffer.putInt(sale.getCustomerId());
+            buffer.putInt(sale.getCarId());
+            buffer.putDouble(sale.getPrice());
+            buffer.putInt(sale.getEmployeeId());
+            putString(sale.getPaymentMethod());
+        }
+    }
+
+    // Reverse of EntityEncoder. Subclasses make bytes available in require().
+    abstract class EntityDecoder {
+        protected ByteBuffer buffer;
+
+        protected abstract void require(int bytes) throws IOException;
+
+        protected String getString() throws IOException {
+            require(4);
+            int length = buffer.getInt();
+            if (length < 0) return null;
+            if (length <= buffer.capacity()) {
+                require(length);
+                String value = StandardCharsets.UTF_8.decode(buffer.slice().limit(length)).toString();
+                buffer.position(buffer.position() + length);
+                return value;
+            }
+            byte[] bytes = new byte[length];
+            for (int offset = 0; offset < length; ) {
+                require(1);
+                int chunk = Math.min(buffer.remaining(), length - offset);
+                buffer.get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        protected Car getCar() throws IOException {
+            require(4);
+            int id = buffer.getInt();
+            String make = getString();
+            String model = getString();
+            require(4);
+            int year = buffer.getInt();
+            String color = getString();
+            require(8 + 1 + 4);
+            double price = buffer.getDouble();
+            int status = buffer.get();
+            int mileage = buffer.getInt();
+            String vin = getString();
+            CarStatus[] statuses = CarStatus.values();
+            if (status < 0 || status >= statuses.length) {
+                throw new IOException("Corrupt data: bad status for car " + id);
+            }
+            return createCar(id, make, model, year, color, price, statuses[status], mileage, vin);
+        }
+
+        protected Customer getCustomer() throws IOException {
+            require(4);
+            return new Customer(buffer.getInt(), getString(), getString(), getString(), getString(), getString());
+        }
+
+        protected Employee getEmployee() throws IOException {
+            require(4);
+            int id = buffer.getInt();
+            String name = getString();
+            String position = getString();
+            String phone = getString();
+            String email = getString();
+            String hireDate = getString();
+            require(8);
+            double salary = buffer.getDouble();
+            return new Employee(id, name, position, phone, email, hireDate, salary, getString(), getString());
+        }
+
+        protected Sale getSale() throws IOException {
+            require(4);
+            int id = buffer.getInt();
+            String date = getString();
+            require(4 + 4 + 8 + 4);
+            int customerId = buffer.getInt();
+            int carId = buffer.getInt();
+            double price = buffer.getDouble();
+            int employeeId = buffer.getInt();
+            return new Sale(id, date, customerId, carId, price, employeeId, getString());
+        }
+    }
+
+    // Streams a DataSnapshot to disk through one reusable buffer. The file is written
+    // under a temporary name and moved into place, so a failed backup never replaces a
+    // good one.
+    static class BinaryBackupWriter extends EntityEncoder {
+        private final CRC32 crc = new CRC32();
+        private FileChannel channel;
+        private boolean checksummed;
+
+        BinaryBackupWriter() {
+            buffer = ByteBuffer.allocateDirect(1 << 18);
+        }
+
+        public void write(Path file, DataSnapshot snapshot) throws IOException {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel = out;
+                buffer.clear();
+                crc.reset();
+
+                ensure(16);
+                buffer.putInt(BACKUP_MAGIC);
+                buffer.putShort(BACKUP_VERSION);
+                buffer.putShort((short) 0);
+                buffer.putLong(System.currentTimeMillis());
+                flush();
+
+                checksummed = true;
+                section(SECTION_CARS, snapshot.cars.size());
+                for (Car car : snapshot.cars) putCar(car);
+                section(SECTION_CUSTOMERS, snapshot.customers.size());
+                for (Customer customer : snapshot.customers) putCustomer(customer);
+                section(SECTION_EMPLOYEES, snapshot.employees.size());
+                for (Employee employee : snapshot.employees) putEmployee(employee);
+                section(SECTION_SALES, snapshot.sales.size());
+                for (Sale sale : snapshot.sales) putSale(sale);
+                flush();
+
+                checksummed = false;
+                buffer.putInt(BACKUP_END_MAGIC);
+                buffer.putLong(crc.getValue());
+                flush();
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void section(byte tag, int count) throws IOException {
+            ensure(5);
+            buffer.put(tag);
+            buffer.putInt(count);
+        }
+
+        @Override
+        protected void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            if (checksummed) {
+                crc.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Reads a file written by BinaryBackupWriter, checking the header, record counts and
+    // checksum before anything is handed back
+    class BinaryBackupReader extends EntityDecoder {
+        private final CRC32 crc = new CRC32();
+        private FileChannel channel;
+        private int checksumFrom;
+        private boolean checksummed;
+
+        BinaryBackupReader() {
+            buffer = ByteBuffer.allocateDirect(1 << 18);
+        }
+
+        public DataSnapshot read(Path file) throws IOException {
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel = in;
+                buffer.clear().flip();
+                crc.reset();
+
+                require(16);
+                if (buffer.getInt() != BACKUP_MAGIC) {
+                    throw new IOException(file.getFileName() + " is not a backup file");
+                }
+                short version = buffer.getShort();
+                if (version > BACKUP_VERSION) {
+                    throw new IOException("Backup version " + version + " is newer than this application supports");
+                }
+                buffer.getShort();
+                buffer.getLong();
+
+                checksummed = true;
+                checksumFrom = buffer.position();
+                int carCount = section(SECTION_CARS);
+                List<Car> cars = new ArrayList<>(carCount);
+                for (int i = 0; i < carCount; i++) cars.add(getCar());
+                int customerCount = section(SECTION_CUSTOMERS);
+                List<Customer> customers = new ArrayList<>(customerCount);
+                for (int i = 0; i < customerCount; i++) customers.add(getCustomer());
+                int employeeCount = section(SECTION_EMPLOYEES);
+                List<Employee> employees = new ArrayList<>(employeeCount);
+                for (int i = 0; i < employeeCount; i++) employees.add(getEmployee());
+                int saleCount = section(SECTION_SALES);
+                List<Sale> sales = new ArrayList<>(saleCount);
+                for (int i = 0; i < saleCount; i++) sales.add(getSale());
+
+                updateChecksum();
+                checksummed = false;
+                require(12);
+                if (buffer.getInt() != BACKUP_END_MAGIC || buffer.getLong() != crc.getValue()) {
+                    throw new IOException("Corrupt backup: checksum mismatch");
+                }
+                return new DataSnapshot(cars, customers, employees, sales);
+            }
+        }
+
+        private int section(byte tag) throws IOException {
+            require(5);
+            if (buffer.get() != tag) {
+                throw new IOException("Corrupt backup: expected section " + (char) tag);
+            }
+            int count = buffer.getInt();
+            if (count < 0) {
+                throw new IOException("Corrupt backup: negative record count");
+            }
+            return count;
+        }
+
+        // Makes at least the given number of bytes readable, refilling from the file
+        @Override
+        protected void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) return;
+            updateChecksum();
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Backup file is truncated");
+                }
+            }
+            buffer.flip();
+            checksumFrom = 0;
+        }
+
+        private void updateChecksum() {
+            if (checksummed && buffer.position() > checksumFrom) {
+                ByteBuffer consumed = buffer.duplicate();
+                consumed.position(checksumFrom).limit(buffer.position());
+                crc.update(consumed);
+            }
+            checksumFrom = buffer.position();
         }
     }
 
-    private void restoreData() {
-        JOptionPane.showMessageDialog(this, "Restore functionality would load data from backup files here", "Restore Data", JOptionPane.INFORMATION_MESSAGE);
+    // Columnar analytics export, version 1. All numbers are big-endian.
+    //   header:  int magic "CRCF", short version, short reserved, long created (epoch millis)
+    //   tables:  a 'T' tag, the table name, a short column count and each column's name and
+    //            type byte; then row groups, each a 'G' tag, an int row count and one chunk
+    //            per column in column order; then an 'E' tag
+    //   footer:  int table count, then per table its name, long row count, int row group
+    //            count and the long file offset of its 'T' tag; last the long offset of the
+    //            footer and int magic "CRCE"
+    // int32 and int64 chunks are the raw values. A string chunk starts with an encoding
+    // byte: 'D' is a dictionary (int entry count, the entries, a code width byte of 1, 2 or
+    // 4, then one code per row) and 'P' is the values one after another. Strings are
+    // encoded as in the backup, money is in cents and unreadable dates are Integer.MIN_VALUE.
+    static final int COLUMNAR_MAGIC = 0x43524346;
+    static final int COLUMNAR_END_MAGIC = 0x43524345;
+    static final short COLUMNAR_VERSION = 1;
+    static final byte COLUMN_INT32 = 'I';
+    static final byte COLUMN_INT64 = 'L';
+    static final byte COLUMN_STRING = 'S';
+    static final byte ENCODING_DICTIONARY = 'D';
+    static final byte ENCODING_PLAIN = 'P';
+    static final byte TAG_TABLE = 'T';
+    static final byte TAG_ROW_GROUP = 'G';
+    static final byte TAG_TABLE_END = 'E';
+
+    // One column of an export table. Values are buffered for the current row group and
+    // written out as one chunk when the group is full.
+    abstract static class ExportColumn<T> {
+        final String name;
+        final byte type;
+
+        ExportColumn(String name, byte type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        abstract void add(T row);
+
+        // Writes the buffered values and empties the column for the next row group
+        abstract void writeChunk(ColumnarExportWriter out) throws IOException;
     }
 
-    private void generateReport(String fromDate, String toDate) {
-        JOptionPane.showMessageDialog(this, "Generating report for date range: " + fromDate + " to " + toDate, "Generate Report", JOptionPane.INFORMATION_MESSAGE);
+    static class IntExportColumn<T> extends ExportColumn<T> {
+        private final ToIntFunction<T> getter;
+        private int[] values = new int[64];
+        private int size;
+
+        IntExportColumn(String name, ToIntFunction<T> getter) {
+            super(name, COLUMN_INT32);
+            this.getter = getter;
+        }
+
+        @Override
+        void add(T row) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = getter.applyAsInt(row);
+        }
+
+        @Override
+        void writeChunk(ColumnarExportWriter out) throws IOException {
+            out.putInts(values, size);
+            size = 0;
+        }
     }
 
-    private void printReport() {
-        JOptionPane.showMessageDialog(this, "Print functionality would print the current report here", "Print Report", JOptionPane.INFORMATION_MESSAGE);
+    static class LongExportColumn<T> extends ExportColumn<T> {
+        private final ToLongFunction<T> getter;
+        private long[] values = new long[64];
+        private int size;
+
+        LongExportColumn(String name, ToLongFunction<T> getter) {
+            super(name, COLUMN_INT64);
+            this.getter = getter;
+        }
+
+        @Override
+        void add(T row) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = getter.applyAsLong(row);
+        }
+
+        @Override
+        void writeChunk(ColumnarExportWriter out) throws IOException {
+            out.putLongs(values, size);
+            size = 0;
+        }
     }
 
-    private void savePreferences(String theme, String currency) {
-        JOptionPane.showMessageDialog(this, "Preferences saved:\nTheme: " + theme + "\nCurrency: " + currency, "Preferences Saved", JOptionPane.INFORMATION_MESSAGE);
+    // Strings are dictionary-encoded while at most half the values in a group are
+    // distinct (makes, colours, statuses, payment methods); names, VINs and other
+    // near-unique columns fall back to plain so the dictionary doesn't double their size
+    static class StringExportColumn<T> extends ExportColumn<T> {
+        private final Function<T, String> getter;
+        private final HashMap<String, Integer> dictionary = new HashMap<>();
+        private final List<String> entries = new ArrayList<>();
+        private String[] values = new String[64];
+        private int[] codes = new int[64];
+        private int size;
+
+        StringExportColumn(String name, Function<T, String> getter) {
+            super(name, COLUMN_STRING);
+            this.getter = getter;
+        }
+
+        @Override
+        void add(T row) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+            String value = getter.apply(row);
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = entries.size();
+                dictionary.put(value, code);
+                entries.add(value);
+            }
+            values[size] = value;
+            codes[size++] = code;
+        }
+
+        @Override
+        void writeChunk(ColumnarExportWriter out) throws IOException {
+            if (entries.size() * 2 <= size) {
+                out.putByte(ENCODING_DICTIONARY);
+                out.putInt(entries.size());
+                for (String entry : entries) out.putString(entry);
+                out.putCodes(codes, size, entries.size());
+            } else {
+                out.putByte(ENCODING_PLAIN);
+                for (int i = 0; i < size; i++) out.putString(values[i]);
+            }
+            Arrays.fill(values, 0, size, null);
+            dictionary.clear();
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    // A named table for the columnar export: the rows to write and how to read each column
+    static class ExportTable<T> {
+        final String name;
+        final Iterable<T> rows;
+        final List<ExportColumn<T>> columns = new ArrayList<>();
+
+        ExportTable(String name, Iterable<T> rows) {
+            this.name = name;
+            this.rows = rows;
+        }
+
+        ExportTable<T> intColumn(String name, ToIntFunction<T> getter) {
+            columns.add(new IntExportColumn<>(name, getter));
+            return this;
+        }
+
+        ExportTable<T> longColumn(String name, ToLongFunction<T> getter) {
+            columns.add(new LongExportColumn<>(name, getter));
+            return this;
+        }
+
+        ExportTable<T> stringColumn(String name, Function<T, String> getter) {
+            columns.add(new StringExportColumn<>(name, getter));
+            return this;
+        }
+    }
+
+    // Per-table totals from a finished export, in file order
+    static class ExportedTable {
+        final String name;
+        final long rows;
+        final int rowGroups;
+        final long offset;
+
+        ExportedTable(String name, long rows, int rowGroups, long offset) {
+            this.name = name;
+            this.rows = rows;
+            this.rowGroups = rowGroups;
+            this.offset = offset;
+        }
+    }
+
+    // Writes export tables in the columnar format in one pass over each table's rows,
+    // holding at most one row group per table in memory
+    static class ColumnarExportWriter extends EntityEncoder {
+        private final int rowGroupRows;
+        private FileChannel channel;
+        private long flushed;
+
+        ColumnarExportWriter(int rowGroupRows) {
+            this.rowGroupRows = Math.max(1, rowGroupRows);
+            buffer = ByteBuffer.allocateDirect(1 << 18);
+        }
+
+        public List<ExportedTable> write(Path file, List<ExportTable<?>> tables) throws IOException {
+            List<ExportedTable> written = new ArrayList<>(tables.size());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                channel = out;
+                flushed = 0;
+                buffer.clear();
+
+                ensure(16);
+                buffer.putInt(COLUMNAR_MAGIC);
+                buffer.putShort(COLUMNAR_VERSION);
+                buffer.putShort((short) 0);
+                buffer.putLong(System.currentTimeMillis());
+
+                for (ExportTable<?> table : tables) {
+                    written.add(writeTable(table));
+                }
+
+                long footer = offset();
+                putInt(written.size());
+                for (ExportedTable table : written) {
+                    putString(table.name);
+                    ensure(8 + 4 + 8);
+                    buffer.putLong(table.rows);
+                    buffer.putInt(table.rowGroups);
+                    buffer.putLong(table.offset);
+                }
+                ensure(8 + 4);
+                buffer.putLong(footer);
+                buffer.putInt(COLUMNAR_END_MAGIC);
+                flush();
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return written;
+        }
+
+        private <T> ExportedTable writeTable(ExportTable<T> table) throws IOException {
+            long start = offset();
+            putByte(TAG_TABLE);
+            putString(table.name);
+            ensure(2);
+            buffer.putShort((short) table.columns.size());
+            for (ExportColumn<T> column : table.columns) {
+                putString(column.name);
+                putByte(column.type);
+            }
+
+            long rows = 0;
+            int groups = 0;
+            int pending = 0;
+            for (T row : table.rows) {
+                for (ExportColumn<T> column : table.columns) column.add(row);
+                rows++;
+                if (++pending == rowGroupRows) {
+                    writeRowGroup(table, pending);
+                    groups++;
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                writeRowGroup(table, pending);
+                groups++;
+            }
+            putByte(TAG_TABLE_END);
+            return new ExportedTable(table.name, rows, groups, start);
+        }
+
+        private <T> void writeRowGroup(ExportTable<T> table, int rows) throws IOException {
+            putByte(TAG_ROW_GROUP);
+            putInt(rows);
+            for (ExportColumn<T> column : table.columns) column.writeChunk(this);
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        // Bulk copies through an int view of the buffer rather than one putInt per value
+        void putInts(int[] values, int count) throws IOException {
+            for (int i = 0; i < count; ) {
+                ensure(4);
+                int n = Math.min(count - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, i, n);
+                buffer.position(buffer.position() + n * 4);
+                i += n;
+            }
+        }
+
+        void putLongs(long[] values, int count) throws IOException {
+            for (int i = 0; i < count; ) {
+                ensure(8);
+                int n = Math.min(count - i, buffer.remaining() / 8);
+                buffer.asLongBuffer().put(values, i, n);
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+            }
+        }
+
+        // Dictionary codes in the narrowest width that holds every entry
+        void putCodes(int[] codes, int count, int entries) throws IOException {
+            if (entries <= 1 << 8) {
+                putByte((byte) 1);
+                for (int i = 0; i < count; i++) putByte((byte) codes[i]);
+            } else if (entries <= 1 << 16) {
+                putByte((byte) 2);
+                for (int i = 0; i < count; i++) {
+                    ensure(2);
+                    buffer.putShort((short) codes[i]);
+                }
+            } else {
+                putByte((byte) 4);
+                putInts(codes, count);
+            }
+        }
+
+        private long offset() {
+            return flushed + buffer.position();
+        }
+
+        @Override
+        protected void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            flushed += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    // Write-ahead journal. Every repository change is appended to the current segment
+    // file as an int payload length, an int CRC32 of the payload and the payload: an op
+    // byte, an entity tag (the backup section tags) and either the encoded entity or, for
+    // a delete, its id. A CLEAR record empties one entity type ahead of a bulk reload.
+    //
+    // Records are encoded on the EDT and queued; one writer thread appends whatever has
+    // queued up and fsyncs once per batch (group commit), so the EDT never waits on the
+    // disk. Every snapshotEvery records the journal rolls over to a new segment and the
+    // state at that moment is saved as snapshot-<segment>.bin in the backup format; once
+    // that is on disk the older segments and snapshots are deleted. Startup loads the
+    // newest snapshot and replays only the segments written after it.
+    class Journal {
+        static final byte OP_UPSERT = 'P';
+        static final byte OP_DELETE = 'D';
+        static final byte OP_CLEAR = 'X';
+
+        private final Path directory;
+        private final int snapshotEvery;
+        private final JournalRecordEncoder encoder = new JournalRecordEncoder();
+
+        // Shared with the writer thread, guarded by lock. The queue holds encoded records
+        // and, as Long, the number of a segment to roll over to.
+        private final Object lock = new Object();
+        private ArrayList<Object> queue = new ArrayList<>();
+        private long writerSegment;
+        private long lastRollOver;
+        private boolean closed;
+        private final Thread writer;
+
+        // EDT only
+        private long currentSegment;
+        private int recordsSinceSnapshot;
+        private boolean snapshotRunning;
+        private boolean snapshotScheduled;
+        private long lastSnapshotMillis;
+        private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Writer thread only. segmentLength is where the last complete record ends; after a
+        // failed write the segment is cut back to it before anything else is appended, so
+        // a torn record can't hide the records written after it from replay.
+        private FileChannel segment;
+        private long segmentLength;
+        private boolean torn;
+        private boolean failureReported;
+
+        public Journal(Path directory, long firstSegment, int snapshotEvery) throws IOException {
+            this.directory = directory;
+            this.snapshotEvery = Math.max(1, snapshotEvery);
+            currentSegment = firstSegment;
+            writerSegment = firstSegment;
+            segment = openSegment(firstSegment);
+            segmentLength = segment.size();
+            writer = new Thread(this::runWriter, "journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public void upsert(byte entity, Object item) {
+            append(encoder.encode(OP_UPSERT, entity, item, 0));
+        }
+
+        public void delete(byte entity, int id) {
+            append(encoder.encode(OP_DELETE, entity, null, id));
+        }
+
+        public void clear(byte entity) {
+            append(encoder.encode(OP_CLEAR, entity, null, 0));
+        }
+
+        private void append(byte[] record) {
+            enqueue(record);
+            if (++recordsSinceSnapshot >= snapshotEvery && !snapshotScheduled) {
+                // Let the current change finish notifying its listeners first
+                snapshotScheduled = true;
+                SwingUtilities.invokeLater(this::snapshot);
+            }
+        }
+
+        private void enqueue(Object record) {
+            synchronized (lock) {
+                queue.add(record);
+                lock.notifyAll();
+            }
+        }
+
+        public void snapshotIfDirty() {
+            if (recordsSinceSnapshot > 0) snapshot();
+        }
+
+        // Rolls the journal over and writes the state as of the roll-over in the background
+        public void snapshot() {
+            snapshotScheduled = false;
+            if (snapshotRunning) return;
+            snapshotRunning = true;
+            DataSnapshot data = DataSnapshot.capture(CarRetailSystem.this);
+            long snapshotSegment = ++currentSegment;
+            enqueue(snapshotSegment);
+            recordsSinceSnapshot = 0;
+            snapshotExecutor.execute(() -> {
+                try {
+                    // Only a snapshot whose later changes are in their own segment is valid
+                    awaitRollOver(snapshotSegment);
+                    new BinaryBackupWriter().write(directory.resolve(snapshotName(snapshotSegment)), data);
+                    deleteBefore(snapshotSegment);
+                    SwingUtilities.invokeLater(() -> lastSnapshotMillis = System.currentTimeMillis());
+                } catch (IOException e) {
+                    // The segments are still there, so nothing is lost; the next snapshot retries
+                    reportFailure(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    SwingUtilities.invokeLater(() -> snapshotRunning = false);
+                }
+            });
+        }
+
+        private void awaitRollOver(long snapshotSegment) throws IOException, InterruptedException {
+            synchronized (lock) {
+                while (lastRollOver < snapshotSegment && !closed) lock.wait();
+                if (writerSegment != snapshotSegment) {
+                    throw new IOException("Journal could not start segment " + snapshotSegment);
+                }
+            }
+        }
+
+        private void deleteBefore(long snapshotSegment) throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    long number = segmentNumber(file);
+                    if (number >= 0 && number < snapshotSegment) Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        private void runWriter() {
+            ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+            while (true) {
+                ArrayList<Object> batch;
+                synchronized (lock) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (queue.isEmpty()) break;
+                    batch = queue;
+                    queue = new ArrayList<>();
+                }
+                try {
+                    if (torn) {
+                        segment.truncate(segmentLength);
+                        torn = false;
+                    }
+                    for (Object entry : batch) {
+                        if (entry instanceof Long) {
+                            drain(out);
+                            segment.force(false);
+                            rollOver((Long) entry);
+                            continue;
+                        }
+                        byte[] record = (byte[]) entry;
+                        if (record.length > out.capacity()) {
+                            drain(out);
+                            ByteBuffer large = ByteBuffer.wrap(record);
+                            while (large.hasRemaining()) segment.write(large);
+                            segmentLength = segment.size();
+                        } else {
+                            if (record.length > out.remaining()) drain(out);
+                            out.put(record);
+                        }
+                    }
+                    drain(out);
+                    segment.force(false);
+                } catch (IOException e) {
+                    // The rest of this batch is lost and reported; drop the partial record now
+                    // if possible, otherwise before the next batch is written
+                    out.clear();
+                    torn = true;
+                    reportFailure(e);
+                    try {
+                        segment.truncate(segmentLength);
+                        torn = false;
+                    } catch (IOException again) {
+                        // Retried before the next write
+                    }
+                }
+            }
+            try {
+                segment.force(false);
+                segment.close();
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+        }
+
+        // On failure the writer stays on the current segment and the snapshot waiting for
+        // this roll-over is abandoned
+        private void rollOver(long number) {
+            boolean rolled = false;
+            try {
+                FileChannel previous = segment;
+                segment = openSegment(number);
+                segmentLength = segment.size();
+                torn = false;
+                rolled = true;
+                previous.close();
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+            synchronized (lock) {
+                if (rolled) writerSegment = number;
+                lastRollOver = number;
+                lock.notifyAll();
+            }
+        }
+
+        // The buffer only ever holds whole records
+        private void drain(ByteBuffer out) throws IOException {
+            out.flip();
+            while (out.hasRemaining()) segment.write(out);
+            out.clear();
+            segmentLength = segment.size();
+        }
+
+        private FileChannel openSegment(long number) throws IOException {
+            return FileChannel.open(directory.resolve(segmentName(number)),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        private void reportFailure(IOException e) {
+            synchronized (lock) {
+                if (failureReported) return;
+                failureReported = true;
+            }
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(CarRetailSystem.this,
+                    "Error writing the journal: " + e.getMessage(), "Journal Error", JOptionPane.ERROR_MESSAGE));
+        }
+
+        // Writes out everything queued and stops the writer; used from the shutdown hook
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            try {
+                writer.join(10000);
+                snapshotExecutor.shutdown();
+                snapshotExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public Path getDirectory() { return directory; }
+        public long getCurrentSegment() { return currentSegment; }
+        public int getRecordsSinceSnapshot() { return recordsSinceSnapshot; }
+        public long getLastSnapshotMillis() { return lastSnapshotMillis; }
+    }
+
+    static String segmentName(long number) { return String.format("journal-%010d.log", number); }
+    static String snapshotName(long number) { return String.format("snapshot-%010d.bin", number); }
+
+    // Segment or snapshot number from a journal file name, or -1 for anything else
+    static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        int dash = name.indexOf('-');
+        int dot = name.lastIndexOf('.');
+        boolean journalFile = (name.startsWith("journal-") && name.endsWith(".log"))
+                || (name.startsWith("snapshot-") && name.endsWith(".bin"));
+        if (!journalFile || dot <= dash + 1) return -1;
+        try {
+            return Long.parseLong(name.substring(dash + 1, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Encodes one journal record, header included, into a growable heap buffer
+    static class JournalRecordEncoder extends EntityEncoder {
+        private final CRC32 crc = new CRC32();
+
+        JournalRecordEncoder() {
+            buffer = ByteBuffer.allocate(4096);
+        }
+
+        byte[] encode(byte op, byte entity, Object item, int id) {
+            try {
+                buffer.clear();
+                buffer.position(8);
+                buffer.put(op);
+                buffer.put(entity);
+                if (op == Journal.OP_DELETE) {
+                    ensure(4);
+                    buffer.putInt(id);
+                } else if (op == Journal.OP_UPSERT) {
+                    switch (entity) {
+                        case SECTION_CARS: putCar((Car) item); break;
+                        case SECTION_CUSTOMERS: putCustomer((Customer) item); break;
+                        case SECTION_EMPLOYEES: putEmployee((Employee) item); break;
+                        default: putSale((Sale) item); break;
+                    }
+                }
+            } catch (IOException e) {
+                // ensure() only grows the heap buffer
+                throw new UncheckedIOException(e);
+            }
+            int length = buffer.position() - 8;
+            crc.reset();
+            crc.update(buffer.array(), 8, length);
+            buffer.putInt(0, length);
+            buffer.putInt(4, (int) crc.getValue());
+            return Arrays.copyOf(buffer.array(), length + 8);
+        }
+
+        @Override
+        protected void ensure(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    // One entity type being rebuilt during replay; keeps first-insert order like Repository
+    class ReplayTable<T> {
+        private final ToIntFunction<T> idOf;
+        private final ArrayList<T> items = new ArrayList<>();
+        private final IntIntHashMap positions = new IntIntHashMap();
+        private int removed;
+
+        ReplayTable(ToIntFunction<T> idOf, List<T> initial) {
+            this.idOf = idOf;
+            for (T item : initial) upsert(item);
+        }
+
+        void upsert(T item) {
+            int id = idOf.applyAsInt(item);
+            int position = positions.get(id, -1);
+            if (position >= 0) {
+                items.set(position, item);
+            } else {
+                positions.put(id, items.size());
+                items.add(item);
+            }
+        }
+
+        void delete(int id) {
+            int position = positions.get(id, -1);
+            if (position < 0) return;
+            items.set(position, null);
+            positions.remove(id);
+            removed++;
+        }
+
+        void clear() {
+            items.clear();
+            positions.clear();
+            removed = 0;
+        }
+
+        List<T> toList() {
+            if (removed == 0) return items;
+            List<T> result = new ArrayList<>(items.size() - removed);
+            for (T item : items) {
+                if (item != null) result.add(item);
+            }
+            return result;
+        }
+    }
+
+    // What startup found in the journal directory
+    static class JournalRecovery {
+        final DataSnapshot data; // null when the directory held no journal at all
+        final long nextSegment;
+        final int replayedRecords;
+
+        JournalRecovery(DataSnapshot data, long nextSegment, int replayedRecords) {
+            this.data = data;
+            this.nextSegment = nextSegment;
+            this.replayedRecords = replayedRecords;
+        }
+    }
+
+    // Loads the newest readable snapshot and replays the segments after it. Replay stops at
+    // the first torn or corrupt record of a segment, which can only be its unsynced tail.
+    class JournalReplayer extends EntityDecoder {
+        private final CRC32 crc = new CRC32();
+
+        public JournalRecovery recover(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            TreeMap<Long, Path> snapshots = new TreeMap<>();
+            TreeMap<Long, Path> segments = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    long number = segmentNumber(file);
+                    if (number < 0) continue;
+                    (file.getFileName().toString().startsWith("snapshot-") ? snapshots : segments).put(number, file);
+                }
+            }
+            if (snapshots.isEmpty() && segments.isEmpty()) {
+                return new JournalRecovery(null, 1, 0);
+            }
+
+            DataSnapshot base = null;
+            long baseSegment = 0;
+            IOException snapshotError = null;
+            for (Map.Entry<Long, Path> entry : snapshots.descendingMap().entrySet()) {
+                try {
+                    base = new BinaryBackupReader().read(entry.getValue());
+                    baseSegment = entry.getKey();
+                    break;
+                } catch (IOException e) {
+                    if (snapshotError == null) snapshotError = e;
+                }
+            }
+            if (base == null && !snapshots.isEmpty()) {
+                // The segments before it are gone, so replaying the rest would lose data silently
+                throw new IOException("No readable snapshot in " + directory + ": " + snapshotError.getMessage());
+            }
+            if (base == null) {
+                base = new DataSnapshot(List.of(), List.of(), List.of(), List.of());
+            }
+
+            ReplayTable<Car> carRows = new ReplayTable<>(Car::getId, base.cars);
+            ReplayTable<Customer> customerRows = new ReplayTable<>(Customer::getId, base.customers);
+            ReplayTable<Employee> employeeRows = new ReplayTable<>(Employee::getId, base.employees);
+            ReplayTable<Sale> saleRows = new ReplayTable<>(Sale::getId, base.sales);
+            int replayed = 0;
+            for (Path segment : segments.tailMap(baseSegment).values()) {
+                replayed += replaySegment(segment, carRows, customerRows, employeeRows, saleRows);
+            }
+
+            long last = Math.max(snapshots.isEmpty() ? 0 : snapshots.lastKey(), segments.isEmpty() ? 0 : segments.lastKey());
+            DataSnapshot data = new DataSnapshot(carRows.toList(), customerRows.toList(), employeeRows.toList(), saleRows.toList());
+            return new JournalRecovery(data, last + 1, replayed);
+        }
+
+        private int replaySegment(Path file, ReplayTable<Car> carRows, ReplayTable<Customer> customerRows,
+                                  ReplayTable<Employee> employeeRows, ReplayTable<Sale> saleRows) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size == 0) return 0;
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int records = 0;
+                while (mapped.remaining() >= 8) {
+                    int length = mapped.getInt();
+                    int checksum = mapped.getInt();
+                    if (length < 2 || length > mapped.remaining()) break;
+                    ByteBuffer payload = mapped.slice().limit(length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    if ((int) crc.getValue() != checksum) break;
+                    buffer = payload;
+                    byte op = buffer.get();
+                    byte entity = buffer.get();
+                    switch (entity) {
+                        case SECTION_CARS: apply(carRows, op, this::getCar); break;
+                        case SECTION_CUSTOMERS: apply(customerRows, op, this::getCustomer); break;
+                        case SECTION_EMPLOYEES: apply(employeeRows, op, this::getEmployee); break;
+                        case SECTION_SALES: apply(saleRows, op, this::getSale); break;
+                        default: throw new IOException("Corrupt journal record in " + file.getFileName());
+                    }
+                    mapped.position(mapped.position() + length);
+                    records++;
+                }
+                return records;
+            }
+        }
+
+        private <T> void apply(ReplayTable<T> table, byte op, EntityReader<T> reader) throws IOException {
+            switch (op) {
+                case Journal.OP_UPSERT: table.upsert(reader.read()); break;
+                case Journal.OP_DELETE: require(4); table.delete(buffer.getInt()); break;
+                case Journal.OP_CLEAR: table.clear(); break;
+                default: throw new IOException("Unknown journal operation " + op);
+            }
+        }
+
+        @Override
+        protected void require(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) throw new EOFException("Journal record is truncated");
+        }
+    }
+
+    interface EntityReader<T> {
+        T read() throws IOException;
+    }
+
+    // Appends every change of one repository to the journal
+    class JournalListener<T> implements RepositoryListener<T> {
+        private final byte entity;
+        private final ToIntFunction<T> idOf;
+
+        public JournalListener(byte entity, ToIntFunction<T> idOf) {
+            this.entity = entity;
+            this.idOf = idOf;
+        }
+
+        @Override
+        public void inserted(T item) {
+            journal.upsert(entity, item);
+        }
+
+        @Override
+        public void updated(T item) {
+            journal.upsert(entity, item);
+        }
+
+        @Override
+        public void deleted(T item) {
+            journal.delete(entity, idOf.applyAsInt(item));
+        }
+
+        @Override
+        public void reloaded(Iterable<T> items, List<T> previous) {
+            journal.clear(entity);
+            for (T item : items) journal.upsert(entity, item);
+        }
     }
 
     // Data classes
-    class Car {
+    // A car as the rest of the application sees it. HeapCar keeps the fields in the
+    // object; CompactCar is a row in carColumns once it is in the repository. Use
+    // createCar() to get one.
+    abstract class Car {
+        // Getters and setters
+        public abstract int getId();
+        public abstract String getMake();
+        public abstract String getModel();
+        public abstract int getYear();
+        public abstract String getColor();
+        public abstract double getPrice();
+        public abstract CarStatus getStatus();
+        public abstract int getMileage();
+        public abstract String getVin();
+        public abstract void setStatus(CarStatus status);
+        public abstract void setMake(String make);
+        public abstract void setModel(String model);
+        public abstract void setYear(int year);
+        public abstract void setColor(String color);
+        public abstract void setPrice(double price);
+        public abstract void setMileage(int mileage);
+        public abstract void setVin(String vin);
+
+        // Moves the car from expected to next in one step; false if it had another status.
+        // SaleTransactions calls it inside cars.update(car, edit).
+        public synchronized boolean compareAndSetStatus(CarStatus expected, CarStatus next) {
+            if (getStatus() != expected) return false;
+            setStatus(next);
+            return true;
+        }
+    }
+
+    // Fields change only inside Repository.update(item, edit); status stays volatile for
+    // readers outside the lock
+    class HeapCar extends Car {
         private int id;
         private String make;
         private String model;
         private int year;
         private String color;
         private double price;
-        private String status;
+        private volatile CarStatus status;
         private int mileage;
         private String vin;
 
-        public Car(int id, String make, String model, int year, String color, double price, String status, int mileage, String vin) {
+        public HeapCar(int id, String make, String model, int year, String color, double price, CarStatus status, int mileage, String vin) {
             this.id = id;
             this.make = make;
             this.model = model;
@@ -3180,53 +8901,90 @@ public class CarRetailSystem extends JFrame {
             this.vin = vin;
         }
 
-        // Getters and setters
-        public int getId() { return id; }
-        public String getMake() { return make; }
-        public String getModel() { return model; }
-        public int getYear() { return year; }
-        public String getColor() { return color; }
-        public double getPrice() { return price; }
-        public String getStatus() { return status; }
-        public int getMileage() { return mileage; }
-        public String getVin() { return vin; }
-        public void setStatus(String status) { this.status = status; }
-        public void setMake(String make) { this.make = make; }
-        public void setModel(String model) { this.model = model; }
-        public void setYear(int year) { this.year = year; }
-        public void setColor(String color) { this.color = color; }
-        public void setPrice(double price) { this.price = price; }
-        public void setMileage(int mileage) { this.mileage = mileage; }
-        public void setVin(String vin) { this.vin = vin; }
+        @Override public int getId() { return id; }
+        @Override public String getMake() { return make; }
+        @Override public String getModel() { return model; }
+        @Override public int getYear() { return year; }
+        @Override public String getColor() { return color; }
+        @Override public double getPrice() { return price; }
+        @Override public CarStatus getStatus() { return status; }
+        @Override public int getMileage() { return mileage; }
+        @Override public String getVin() { return vin; }
+        @Override public void setStatus(CarStatus status) { this.status = status; }
+        @Override public void setMake(String make) { this.make = make; }
+        @Override public void setModel(String model) { this.model = model; }
+        @Override public void setYear(int year) { this.year = year; }
+        @Override public void setColor(String color) { this.color = color; }
+        @Override public void setPrice(double price) { this.price = price; }
+        @Override public void setMileage(int mileage) { this.mileage = mileage; }
+        @Override public void setVin(String vin) { this.vin = vin; }
+    }
+
+    // Flyweight view of one row of carColumns while the car is in the repository; before
+    // it is added and after it is removed the fields are in detached. carColumns' lock
+    // guards both; reads don't block.
+    class CompactCar extends Car {
+        private int row = -1;
+        private HeapCar detached;
+
+        CompactCar(HeapCar fields) {
+            detached = fields;
+        }
+
+        @Override public int getId() { return carColumns.id(this); }
+        @Override public String getMake() { return carColumns.make(this); }
+        @Override public String getModel() { return carColumns.model(this); }
+        @Override public int getYear() { return carColumns.year(this); }
+        @Override public String getColor() { return carColumns.color(this); }
+        @Override public double getPrice() { return carColumns.price(this); }
+        @Override public CarStatus getStatus() { return carColumns.status(this); }
+        @Override public int getMileage() { return carColumns.mileage(this); }
+        @Override public String getVin() { return carColumns.vin(this); }
+        @Override public void setStatus(CarStatus status) { carColumns.setStatus(this, status); }
+        @Override public void setMake(String make) { carColumns.setMake(this, make); }
+        @Override public void setModel(String model) { carColumns.setModel(this, model); }
+        @Override public void setYear(int year) { carColumns.setYear(this, year); }
+        @Override public void setColor(String color) { carColumns.setColor(this, color); }
+        @Override public void setPrice(double price) { carColumns.setPrice(this, price); }
+        @Override public void setMileage(int mileage) { carColumns.setMileage(this, mileage); }
+        @Override public void setVin(String vin) { carColumns.setVin(this, vin); }
     }
 
+    // One recorded sale, never changed afterwards. The date is held as an epoch day (with
+    // the text kept only when it isn't plain yyyy-MM-dd), the price as whole cents and the
+    // payment method as a code into paymentMethods, so a sale is a few primitives with no
+    // Strings of its own, and its fields are final, so any thread can read them.
     class Sale {
-        private int id;
-        private String date;
-        private int customerId;
-        private int carId;
-        private double price;
-        private int employeeId;
-        private String paymentMethod;
+        private final int id;
+        private final int epochDay;
+        private final int customerId;
+        private final int carId;
+        private final int employeeId;
+        private final long cents;
+        private final int paymentCode;
+        private final String irregularDate;
 
         public Sale(int id, String date, int customerId, int carId, double price, int employeeId, String paymentMethod) {
             this.id = id;
-            this.date = date;
             this.customerId = customerId;
             this.carId = carId;
-            this.price = price;
             this.employeeId = employeeId;
-            this.paymentMethod = paymentMethod;
+            epochDay = toEpochDay(date);
+            // LocalDate.parse only accepts yyyy-MM-dd, so ten characters means it round-trips
+            irregularDate = epochDay == Integer.MIN_VALUE || date.length() != 10 ? date : null;
+            cents = Math.round(price * 100);
+            paymentCode = paymentMethods.code(paymentMethod);
         }
 
         // Getters
         public int getId() { return id; }
-        public String getDate() { return date; }
+        public String getDate() { return irregularDate != null ? irregularDate : LocalDate.ofEpochDay(epochDay).toString(); }
+        public int getEpochDay() { return epochDay; }
         public int getCustomerId() { return customerId; }
         public int getCarId() { return carId; }
-        public double getPrice() { return price; }
+        public double getPrice() { return cents / 100.0; }
         public int getEmployeeId() { return employeeId; }
-        public String getPaymentMethod() { return paymentMethod; }
+        public String getPaymentMethod() { return paymentMethods.name(paymentCode); }
     }
 
     class Customer {
@@ -3340,4 +9098,4 @@ public class CarRetailSystem extends JFrame {
                 e.printStackTrace();
             }
         });
-    }
\ No newline at end of file
+    }}